@@ -0,0 +1,127 @@
+// What the coarse-grained BSTs share: unbalanced nodes, unlinking a key
+// and the batch search.  Subclasses decide how writers exclude each other
+// and readers, every method here expects the caller to be the only
+// writer.
+
+import java.util.ArrayList;
+
+abstract class AbstractCoarseBST<T extends Comparable<T>> implements Tree<T> {
+	Node root;
+
+	// node has been unlinked and nothing refers to it any more
+	void recycle(Node node) {
+	}
+
+	// next is parent's child, or the root when parent is null.  Removes
+	// next's key, next itself stays in the tree if it had two children.
+	final void unlink(Node parent, Node next) {
+		if(!next.hasLchild() || !next.hasRchlid()) { // at most one child
+			Node child = next.hasLchild() ? next.lchild : next.rchild;
+			if(parent == null) // root
+				root = child;
+			else if(parent.lchild == next)
+				parent.lchild = child;
+			else
+				parent.rchild = child;
+			recycle(next);
+		}
+
+		else { // has both children, pull up the in-order successor
+			Node succParent = next;
+			Node succ = next.rchild;
+			while(succ.hasLchild()) {
+				succParent = succ;
+				succ = succ.lchild;
+			}
+
+			next.value = succ.value;
+			if(succParent == next)
+				succParent.rchild = succ.rchild;
+			else
+				succParent.lchild = succ.rchild;
+			recycle(succ);
+		}
+	}
+
+	// Search within a batch.  path runs from the root to the node the
+	// previous key ended at, lo and hi bound the keys below each node on
+	// it (null for no bound).  The next key first backs up to the deepest
+	// node whose bounds hold it, so a batch in ascending order walks down
+	// to each part of the tree about once instead of from the root for
+	// every key.
+	class Finger {
+		final ArrayList<Node> path = new ArrayList<Node>();
+		final ArrayList<T> lo = new ArrayList<T>();
+		final ArrayList<T> hi = new ArrayList<T>();
+
+		// Leaves the path ending at the node holding value, or at the one
+		// it would hang below, and returns value's comparison with that
+		// node.  The tree must not be empty.
+		int find(T value) {
+			int d = path.size();
+			while(d > 0 && !holds(d - 1, value))
+				d--;
+			truncate(d);
+			if(d == 0)
+				push(root, null, null);
+			while(true) {
+				Node next = last();
+				int cmp = value.compareTo(next.value);
+				if(cmp == 0)
+					return 0;
+				Node child = cmp > 0 ? next.rchild : next.lchild;
+				if(child == null)
+					return cmp;
+				int top = path.size() - 1;
+				if(cmp > 0)
+					push(child, next.value, hi.get(top));
+				else
+					push(child, lo.get(top), next.value);
+			}
+		}
+
+		Node last() {
+			return path.get(path.size() - 1);
+		}
+
+		Node parent() {
+			return path.size() > 1 ? path.get(path.size() - 2) : null;
+		}
+
+		// forgets the last node
+		void backUp() {
+			truncate(path.size() - 1);
+		}
+
+		// value can be below path[i]
+		private boolean holds(int i, T value) {
+			return (lo.get(i) == null || value.compareTo(lo.get(i)) > 0)
+					&& (hi.get(i) == null || value.compareTo(hi.get(i)) < 0);
+		}
+
+		private void push(Node node, T low, T high) {
+			path.add(node);
+			lo.add(low);
+			hi.add(high);
+		}
+
+		private void truncate(int d) {
+			for(int i = path.size() - 1; i >= d; i--) {
+				path.remove(i);
+				lo.remove(i);
+				hi.remove(i);
+			}
+		}
+	}
+
+	class Node {
+		public Node(T value) {
+			this.value = value;
+		}
+		T value;
+		Node lchild, rchild;
+
+		public boolean hasLchild() { return lchild != null; }
+		public boolean hasRchlid() { return rchild != null; }
+	}
+}
@@ -0,0 +1,1203 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import stanford.Epoch;
+import stanford.ShrinkWait;
+
+// Core of the optimistic AVL trees, whatever their key type.  Nodes hold
+// no key here, subclasses add one, and the descent compares through the
+// Search an operation passes in.  Everything else, rebalancing, relaxed
+// balance, routing node sweeps and reclamation, only looks at links,
+// heights and versions.
+//
+// Optimistic concurrent AVL tree after Bronson et al., "A Practical
+// Concurrent Binary Search Tree".  Searches take no locks, they check the
+// version of each node before and after following one of its links and
+// start that step over if a rotation shrank the node in between.  Updates
+// lock the nodes they change, a removed key whose node still has two
+// children stays behind as a routing node until rebalancing splices it
+// out.  Unlike SnapTreeMap there are no snapshots, no lazy copies and no
+// map layer.
+//
+// With Balance.RELAXED an update does not climb back up to repair heights
+// and rotate.  It only queues the node it damaged, under the lock it holds
+// anyway, and a maintenance thread rebalances the queued nodes in batches.
+// The tree can then be out of balance for a while during a burst of
+// updates, but writers no longer meet each other's repairs near the root.
+//
+// Rebalancing only splices out routing nodes it happens to leave with a
+// single child.  Once they outnumber a quarter of the keys, a sweep on
+// the maintenance thread rotates each one down until it can be unlinked,
+// see sweep.  A strict tree only starts that thread once its first sweep
+// is due.
+abstract class AbstractLockAVLTree {
+	public enum Balance { STRICT, RELAXED }
+
+	final RootHolder rootHolder = new RootHolder();
+	final Balance balance;
+
+	// Readers walk without locks, so an unlinked node is only reused once
+	// every operation that started before the unlink is over
+	NodePool<Node> pool = new NodePool<Node>();
+	EpochReclaimer<Node> reclaimer = new EpochReclaimer<Node>(this::release);
+
+	// RELAXED only: damaged nodes, whose height or balance may be off,
+	// each in there at most once at a time, see defer
+	final ConcurrentLinkedQueue<Node> repairs = new ConcurrentLinkedQueue<Node>();
+	// rebalances a relaxed tree and sweeps, null until started
+	volatile Thread maintenance;
+	volatile boolean stopped;
+
+	// a relaxed tree's idle maintenance thread waits twice as long each
+	// time it finds nothing to do, up to the maximum
+	static final long MinIdleParkNanos = 1000000L;  // 1 ms
+	static final long MaxIdleParkNanos = 16000000L; // 16 ms
+
+	// keys and routing nodes in the tree
+	final LongAdder size = new LongAdder();
+	final LongAdder routing = new LongAdder();
+	final LongAdder swept = new LongAdder();
+	final AtomicBoolean sweeping = new AtomicBoolean();
+
+	static final int SweepMinimum = 64;
+	static final int SweepShift = 2; // a quarter of the keys
+	// one remove in SweepSample checks whether a sweep is due
+	static final int SweepSample = 64;
+
+	AbstractLockAVLTree(Balance balance) {
+		this.balance = balance;
+		if(balance == Balance.RELAXED)
+			startMaintenance();
+	}
+
+	private synchronized Thread startMaintenance() {
+		if(maintenance == null && !stopped) {
+			Thread t = new Thread(new Runnable() {
+				public void run() {
+					long idle = MinIdleParkNanos;
+					while(!stopped) {
+						boolean repaired = rebalance();
+						if(sweepIfDue() || repaired) {
+							idle = MinIdleParkNanos;
+							continue;
+						}
+						// a strict tree has nothing to poll for, the next
+						// remove that finds a sweep due wakes it up
+						if(balance == Balance.STRICT)
+							LockSupport.park(AbstractLockAVLTree.this);
+						else {
+							LockSupport.parkNanos(idle);
+							idle = Math.min(2 * idle, MaxIdleParkNanos);
+						}
+					}
+				}
+			}, "LockAVLTree-maintenance");
+			t.setDaemon(true);
+			maintenance = t;
+			t.start();
+		}
+		return maintenance;
+	}
+
+	/** Stops the maintenance thread.  The tree stays usable, damage only
+	 *  gets repaired by calls to rebalance() and routing nodes swept by
+	 *  calls to sweep() then. */
+	public void shutdown() {
+		Thread t;
+		synchronized(this) {
+			stopped = true;
+			t = maintenance;
+		}
+		if(t != null)
+			LockSupport.unpark(t);
+	}
+
+	/** Repairs every node queued so far on the calling thread, false if
+	 *  there was none.  Once updates have stopped, calling it until it
+	 *  returns false leaves a relaxed tree strictly balanced. */
+	public boolean rebalance() {
+		Node node = repairs.poll();
+		if(node == null)
+			return false;
+		do {
+			Epoch.Ticket ticket = reclaimer.enter();
+			try {
+				// an unlinked node keeps its mark, so release leaves it
+				// alone instead of pooling it under a later poll
+				if(!isUnlinked(node.version)) {
+					// cleared first, damage done from now on queues it again
+					node.queued = false;
+					fixHeightAndRebalance(node);
+				}
+			} finally {
+				ticket.leave(0);
+			}
+		} while((node = repairs.poll()) != null);
+		return true;
+	}
+
+	// Called with node locked after changing one of its links.  Returns the
+	// node the caller has to go on repairing from, null when it was queued
+	// for the maintenance thread instead.
+	private Node defer(Node node) {
+		if(balance == Balance.STRICT)
+			return fixHeight_nl(node);
+		// the lock orders writers, the maintenance thread clears the mark
+		// before it reads the links, so either it sees this change or the
+		// node goes into the queue again
+		if(!node.queued) {
+			node.queued = true;
+			repairs.add(node);
+		}
+		return null;
+	}
+
+	// Routing nodes still in the tree
+	public long routingNodes() {
+		return routing.sum();
+	}
+
+	// Routing nodes unlinked by sweeps so far
+	public long swept() {
+		return swept.sum();
+	}
+
+	// routing nodes have piled up
+	private boolean sweepDue() {
+		long r = routing.sum();
+		return r > SweepMinimum && r > size.sum() >> SweepShift;
+	}
+
+	// Called after a successful remove.  Only a sample of them look at the
+	// counters, and the sweep itself is left to the maintenance thread.
+	private void requestSweep() {
+		if(ThreadLocalRandom.current().nextInt(SweepSample) != 0 || !sweepDue())
+			return;
+		Thread t = maintenance;
+		if(t == null)
+			t = startMaintenance();
+		if(t != null)
+			LockSupport.unpark(t);
+	}
+
+	// Sweeps if routing nodes have piled up and no other thread is at it
+	// already.  Returns whether it did.
+	boolean sweepIfDue() {
+		if(!sweepDue())
+			return false;
+		if(!sweeping.compareAndSet(false, true))
+			return false;
+		try {
+			sweep();
+		} finally {
+			sweeping.set(false);
+		}
+		return true;
+	}
+
+	/** Unlinks the routing nodes found in one walk over the tree and
+	 *  returns how many.  Runs alongside other operations, routing nodes
+	 *  that come up meanwhile are left to the next sweep.  Nodes unlinked
+	 *  during a sweep are only reused once it is over. */
+	public int sweep() {
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			// collected first, unlinking rearranges the part of the tree
+			// the walk still has to see
+			ArrayList<Node> found = new ArrayList<Node>();
+			ArrayDeque<Node> stack = new ArrayDeque<Node>();
+			Node next = rootHolder.right;
+			if(next != null)
+				stack.push(next);
+			while(!stack.isEmpty()) {
+				next = stack.pop();
+				if(!next.present)
+					found.add(next);
+				// each link read once, an unlink can clear it in between
+				Node left = next.left, right = next.right;
+				if(left != null)
+					stack.push(left);
+				if(right != null)
+					stack.push(right);
+			}
+			int unlinked = 0;
+			for(Node node : found)
+				if(unlinkRouting(node))
+					unlinked++;
+			swept.add(unlinked);
+			return unlinked;
+		} finally {
+			ticket.leave(0);
+		}
+	}
+
+	// Rotates the routing node n down, its taller child going up each time,
+	// until it has no more than one child and can be spliced out.  The
+	// nodes the rotations damaged are only repaired once n is gone, or
+	// rebalancing could bring n right back up.  False if n holds a key
+	// again or someone else unlinked it.
+	private boolean unlinkRouting(Node n) {
+		ArrayList<Node> damaged = new ArrayList<Node>();
+		boolean unlinked = false;
+		while(!isUnlinked(n.version)) {
+			final Node parent = n.parent;
+			synchronized(parent) {
+				if(isUnlinked(parent.version) || n.parent != parent)
+					continue;
+				synchronized(n) {
+					if(isUnlinked(n.version) || n.present)
+						break;
+					final Node nL = n.left;
+					final Node nR = n.right;
+					if(nL == null || nR == null) {
+						unlinked = attemptUnlink_nl(parent, n);
+						damaged.add(parent);
+						break;
+					}
+					if(nL.height >= nR.height) {
+						synchronized(nL) {
+							final Node nLR = nL.right;
+							damaged.add(rotateRight_nl(parent, n, nL, nR.height, height(nL.left), nLR, height(nLR)));
+						}
+						damaged.add(nL);
+					} else {
+						synchronized(nR) {
+							final Node nRL = nR.left;
+							damaged.add(rotateLeft_nl(parent, n, nL.height, nR, nRL, height(nRL), height(nR.right)));
+						}
+						damaged.add(nR);
+					}
+					damaged.add(parent);
+				}
+			}
+		}
+		// deepest first
+		for(int i = damaged.size() - 1; i >= 0; i--)
+			fixHeightAndRebalance(damaged.get(i));
+		return unlinked;
+	}
+
+	// A node that is still queued may yet be looked at by rebalance, so it
+	// is left to the GC
+	private void release(Node node) {
+		if(!node.queued)
+			pool.offer(node);
+	}
+
+	// A node's version.  Unlinked is final.  Otherwise Shrinking or
+	// Growing is set while a rotation moves keys out of or into the range
+	// below the node, and the matching count goes up once it is done.  A
+	// search below a node only cares about shrinks, IgnoreGrow masks out
+	// the rest, so a node moving up does not send anyone back.
+	static final long Unlinked = 0x1L;
+	static final long Growing = 0x2L;
+	static final long Shrinking = 0x4L;
+	static final long GrowCountIncrement = 1L << 3;
+	static final long GrowCountMask = 0xffL << 3;
+	static final long ShrinkCountIncrement = 1L << 11;
+	static final long IgnoreGrow = ~(Growing | GrowCountMask);
+
+	static long beginShrink(long ovl) { return ovl | Shrinking; }
+	static long endShrink(long ovl) { return (ovl & ~Shrinking) + ShrinkCountIncrement; }
+	static long beginGrow(long ovl) { return ovl | Growing; }
+	// the grow count wraps around instead of carrying into the shrink count
+	static long endGrow(long ovl) {
+		return (ovl & ~(Growing | GrowCountMask)) | ((ovl + GrowCountIncrement) & GrowCountMask);
+	}
+
+	static boolean isShrinking(long ovl) { return (ovl & Shrinking) != 0; }
+	static boolean isUnlinked(long ovl) { return (ovl & Unlinked) != 0; }
+	static boolean isShrinkingOrUnlinked(long ovl) { return (ovl & (Shrinking | Unlinked)) != 0L; }
+	// a rotation shrank node, or unlinked it, since it was at version ovl
+	static boolean shrunk(Node node, long ovl) { return ((node.version ^ ovl) & IgnoreGrow) != 0; }
+
+	static final int LEFT = 0, RIGHT = 1;
+	static final Object Retry = new Object();
+
+	// The key an operation is after, as the descent sees it
+	static abstract class Search {
+		// <0, 0 or >0 as the key is below, at or above node's
+		abstract int compareTo(Node node);
+		// a node holding the key, fresh from the allocator
+		abstract Node newNode(Node parent);
+		// puts the key into a node coming back from the pool
+		abstract void store(Node node);
+	}
+
+	final boolean insert(Search s) {
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			return descend(s, INSERT);
+		} finally {
+			ticket.leave(0);
+		}
+	}
+
+	final boolean delete(Search s) {
+		boolean removed;
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			removed = descend(s, REMOVE);
+		} finally {
+			ticket.leave(0);
+		}
+		if(removed)
+			requestSweep();
+		return removed;
+	}
+
+	final boolean find(Search s) {
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			return descend(s, GET);
+		} finally {
+			ticket.leave(0);
+		}
+	}
+
+	static final int GET = 0, INSERT = 1, REMOVE = 2;
+
+	// The nodes a descent went through, each with the version it was at
+	// when the link to it was followed, the holder at depth 0.  One per
+	// thread, shared by all trees, and cleared when the descent is over so
+	// that it keeps no node reachable.
+	private static final class Path {
+		Node[] node = new Node[32];
+		long[] version = new long[32];
+
+		void grow() {
+			node = Arrays.copyOf(node, 2 * node.length);
+			version = Arrays.copyOf(version, 2 * version.length);
+		}
+	}
+
+	private static final ThreadLocal<Path> paths = ThreadLocal.withInitial(Path::new);
+
+	// Walks down to s's key and does op there.  Each step reads a link of
+	// n, then checks that n has not shrunk since the link to it was
+	// followed.  When it has, a rotation may have moved the key out from
+	// below n, so the walk goes back up the path to the deepest node that
+	// has not shrunk since it was passed and carries on from there.  The
+	// holder never shrinks, at worst that is the top.
+	private boolean descend(Search s, int op) {
+		Path path = paths.get();
+		// the link reads are volatile, the arrays would be read again after
+		// each one
+		Node[] node = path.node;
+		long[] version = path.version;
+		Node n = rootHolder;
+		long nV = n.version;
+		int dir = RIGHT;
+		// depth of n, and the deepest one used
+		int d = 0, deepest = 0;
+		node[0] = n;
+		version[0] = nV;
+		try {
+			while(true) {
+				Node child = n.child(dir);
+				if(shrunk(n, nV)) {
+					do {
+						d--;
+					} while(shrunk(node[d], version[d]));
+					n = node[d];
+					nV = version[d];
+					dir = d == 0 ? RIGHT : s.compareTo(n) < 0 ? LEFT : RIGHT;
+					continue;
+				}
+				if(child == null) {
+					if(op != INSERT)
+						return false;
+					Object p = attemptInsert(s, n, dir, nV);
+					if(p != Retry)
+						return p == Boolean.TRUE;
+					continue;
+				}
+				int c = s.compareTo(child);
+				if(c == 0) {
+					// how we got here does not matter
+					if(op == GET)
+						return child.present;
+					Object p = attemptNodeUpdate(op == INSERT, n, child);
+					if(p != Retry)
+						return p == Boolean.TRUE;
+					continue;
+				}
+				long chV = child.version;
+				if(isShrinkingOrUnlinked(chV)) {
+					waitUntilNotChanging(child, chV);
+				} else if(child == n.child(dir) && !shrunk(n, nV)) {
+					// only this second read is covered by chV.  From here
+					// on only child's version matters.
+					if(++d == node.length) {
+						path.grow();
+						node = path.node;
+						version = path.version;
+					}
+					if(d > deepest)
+						deepest = d;
+					node[d] = child;
+					version[d] = chV;
+					n = child;
+					nV = chV;
+					dir = c < 0 ? LEFT : RIGHT;
+				}
+			}
+		} finally {
+			Arrays.fill(path.node, 0, deepest + 1, null);
+		}
+	}
+
+	private Object attemptInsert(Search s, Node node, int dir, long nodeV) {
+		Node damaged;
+		synchronized(node) {
+			// under node's lock no rotation can get in the way any more
+			if(shrunk(node, nodeV) || node.child(dir) != null)
+				return Retry;
+			node.setChild(dir, newNode(s, node));
+			damaged = defer(node);
+		}
+		size.increment();
+		fixHeightAndRebalance(damaged);
+		return Boolean.TRUE;
+	}
+
+	// node holds the key.  parent is only needed to unlink node, and checked
+	// then.
+	private Object attemptNodeUpdate(boolean insert, Node parent, Node node) {
+		if(insert) {
+			synchronized(node) {
+				if(isUnlinked(node.version))
+					return Retry;
+				if(node.present)
+					return Boolean.FALSE;
+				node.present = true; // a routing node again holds a key
+				routing.decrement();
+				size.increment();
+				return Boolean.TRUE;
+			}
+		}
+		if(!node.present)
+			return Boolean.FALSE;
+		if(node.left == null || node.right == null) {
+			// can be spliced out, that needs the parent locked first
+			Node damaged;
+			synchronized(parent) {
+				if(isUnlinked(parent.version) || node.parent != parent)
+					return Retry;
+				synchronized(node) {
+					if(!node.present)
+						return Boolean.FALSE;
+					if(!attemptUnlink_nl(parent, node))
+						return Retry;
+				}
+				damaged = defer(parent);
+			}
+			size.decrement();
+			fixHeightAndRebalance(damaged);
+			return Boolean.TRUE;
+		} else {
+			synchronized(node) {
+				if(isUnlinked(node.version))
+					return Retry;
+				if(!node.present)
+					return Boolean.FALSE;
+				// lost a child meanwhile, unlink it instead
+				if(node.left == null || node.right == null)
+					return Retry;
+				node.present = false; // becomes a routing node
+				routing.increment();
+				size.decrement();
+				return Boolean.TRUE;
+			}
+		}
+	}
+
+	// A shrink ends with a new version, see ShrinkWait
+	final ShrinkWait shrinkWait = new ShrinkWait();
+
+	void waitUntilNotChanging(Node n, long ovl) {
+		if(!isShrinking(ovl))
+			return;
+		shrinkWait.await(n, ovl);
+	}
+
+    static class RootHolder extends Node {
+        RootHolder() {
+            super(1, false, null);
+        }
+    }
+
+	// A subclass adds the key.  It only changes while the node sits in the
+	// pool, and is published by the write of the link to it.
+	static class Node implements ShrinkWait.Versioned {
+		Node(int height, boolean present, Node parent) {
+			this.height = height;
+			this.present = present;
+			this.parent = parent;
+		}
+
+		volatile int height;
+		volatile long version;
+		// false for a routing node, whose key is no longer in the tree
+		volatile boolean present;
+		volatile Node parent, left, right;
+		// sits in the damaged queue of a relaxed tree
+		volatile boolean queued;
+
+		public Node child(int dir) {
+			return (dir == LEFT) ? left : right;
+		}
+
+		public long version() {
+			return version;
+		}
+
+		public void setChild(int dir, Node child) {
+			if(dir == LEFT)
+				this.left = child;
+			else
+				this.right = child;
+		}
+	}
+
+    private int height(final Node node) {
+        return node == null ? 0 : node.height;
+    }
+
+	///////////////////////////// Adapted from /////////////////////////////////////////
+	/* https://github.com/nbronson/snaptree/ */
+    private static final int UnlinkRequired = -1;
+    private static final int RebalanceRequired = -2;
+    private static final int NothingRequired = -3;
+
+	private int nodeCondition(final Node node) {
+        // Begin atomic.
+
+        final Node nL = node.left;
+        final Node nR = node.right;
+
+        if ((nL == null || nR == null) && !node.present) {
+            return UnlinkRequired;
+        }
+
+        final int hN = node.height;
+        final int hL0 = height(nL);
+        final int hR0 = height(nR);
+
+        // End atomic.  Since any thread that changes a node promises to fix
+        // it, either our read was consistent (and a NothingRequired conclusion
+        // is correct) or someone else has taken responsibility for either node
+        // or one of its children.
+
+        final int hNRepl = 1 + Math.max(hL0, hR0);
+        final int bal = hL0 - hR0;
+
+        if (bal < -1 || bal > 1) {
+            return RebalanceRequired;
+        }
+
+        return hN != hNRepl ? hNRepl : NothingRequired;
+    }
+
+    private void fixHeightAndRebalance(Node node) {
+        // rebalance_nl only hands back the lowest damage.  When that lies
+        // below nParent, a rotation may also have changed the height of
+        // the subtree under nParent, or passed n over, so both get another
+        // look once the chain below is done.  Upstream drops them, and the
+        // tree stays out of balance even when quiescent.
+        ArrayDeque<Node> later = null;
+        while (true) {
+            if (node == null || node.parent == null) {
+                if (later == null || later.isEmpty()) {
+                    return;
+                }
+                node = later.pop();
+                continue;
+            }
+            final int condition = nodeCondition(node);
+            if (condition == NothingRequired || isUnlinked(node.version)) {
+                // nothing to do, or no point in fixing this node
+                node = null;
+                continue;
+            }
+
+            if (condition != UnlinkRequired && condition != RebalanceRequired) {
+                synchronized (node) {
+                    node = fixHeight_nl(node);
+                }
+            } else {
+                final Node nParent = node.parent;
+                synchronized (nParent) {
+                    if (!isUnlinked(nParent.version) && node.parent == nParent) {
+                        final Node n = node;
+                        final Node grand = nParent.parent;
+                        synchronized (n) {
+                            node = rebalance_nl(nParent, n);
+                        }
+                        if (node != null && node != nParent && node != grand) {
+                            if (later == null) {
+                                later = new ArrayDeque<Node>();
+                            }
+                            if (node != n || n.parent != nParent) {
+                                later.push(nParent);
+                            }
+                            if (node != n) {
+                                later.push(n);
+                            }
+                        }
+                    }
+                    // else RETRY
+                }
+            }
+        }
+    }
+
+    /** Attempts to fix the height of a (locked) damaged node, returning the
+     *  lowest damaged node for which this thread is responsible.  Returns null
+     *  if no more repairs are needed.
+     */
+    private Node fixHeight_nl(final Node node) {
+        final int c = nodeCondition(node);
+        switch (c) {
+            case RebalanceRequired:
+            case UnlinkRequired:
+                // can't repair
+                return node;
+            case NothingRequired:
+                // Any future damage to this node is not our responsibility.
+                return null;
+            default:
+                node.height = c;
+                // we've damaged our parent, but we can't fix it now
+                return node.parent;
+        }
+    }
+
+    /** nParent and n must be locked on entry.  Returns a damaged node, or null
+     *  if no more rebalancing is necessary.
+     */
+    private Node rebalance_nl(final Node nParent, final Node n) {
+
+        final Node nL = n.left;
+        final Node nR = n.right;
+
+        if ((nL == null || nR == null) && !n.present) {
+            if (attemptUnlink_nl(nParent, n)) {
+                // attempt to fix nParent.height while we've still got the lock
+                return fixHeight_nl(nParent);
+            } else {
+                // retry needed for n
+                return n;
+            }
+        }
+
+        final int hN = n.height;
+        final int hL0 = height(nL);
+        final int hR0 = height(nR);
+        final int hNRepl = 1 + Math.max(hL0, hR0);
+        final int bal = hL0 - hR0;
+
+        if (bal > 1) {
+            return rebalanceToRight_nl(nParent, n, nL, hR0);
+        } else if (bal < -1) {
+            return rebalanceToLeft_nl(nParent, n, nR, hL0);
+        } else if (hNRepl != hN) {
+            // we've got more than enough locks to do a height change, no need to
+            // trigger a retry
+            n.height = hNRepl;
+
+            // nParent is already locked, let's try to fix it too
+            return fixHeight_nl(nParent);
+        } else {
+            // nothing to do
+            return null;
+        }
+    }
+
+    private Node rebalanceToRight_nl(final Node nParent,
+            final Node n,
+            final Node nL,
+            final int hR0) {
+
+		synchronized (nL) {
+			final int hL = nL.height;
+			if (hL - hR0 <= 1) {
+				return n; // retry
+			} else {
+				final Node nLR = nL.right;
+				final int hLL0 = height(nL.left);
+				final int hLR0 = height(nLR);
+				if (hLL0 >= hLR0) {
+					// rotate right based on our snapshot of hLR
+					return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR0);
+				} else {
+					synchronized (nLR) {
+						// If our hLR snapshot is incorrect then we might
+						// actually need to do a single rotate-right on n.
+						final int hLR = nLR.height;
+						if (hLL0 >= hLR) {
+							return rotateRight_nl(nParent, n, nL, hR0, hLL0, nLR, hLR);
+						} else {
+							final int hLRL = height(nLR.left);
+							final int b = hLL0 - hLRL;
+							if (b >= -1 && b <= 1 && !((hLL0 == 0 || hLRL == 0) && !nL.present)) {
+							  // nParent.child.left won't be damaged after a double rotation
+							  return rotateRightOverLeft_nl(nParent, n, nL, hR0, hLL0, nLR, hLRL);
+							}
+							if (b >= -1 && b <= 1 && !nL.present) {
+								// Upstream hands this to nL, which is not out of
+								// balance itself and so never gets n fixed.
+								// Splice the routing node out instead.
+								return spliceRoutingLeft_nl(nParent, n, nL, hR0, hLL0, nLR, hLRL);
+							}
+							if (hLR - hLL0 <= 1) {
+								// nL is in balance, a double rotation would
+								// leave nL out of it.  Only happens when
+								// damage piles up in a relaxed tree.  Turn
+								// nL to lean left first, n gets its turn
+								// when the repair climbs back up.
+								return rotateLeft_nl(n, nL, hLL0, nLR, nLR.left, hLRL, height(nLR.right));
+							}
+						}
+					}
+					// focus on nL, if necessary n will be balanced later
+					return rebalanceToLeft_nl(n, nL, nLR, hLL0);
+				}
+			}
+		}
+	}
+
+    private Node rebalanceToLeft_nl(final Node nParent,
+            final Node n,
+            final Node nR,
+            final int hL0) {
+		synchronized (nR) {
+			final int hR = nR.height;
+			if (hL0 - hR >= -1) {
+				return n; // retry
+			} else {
+				final Node nRL = nR.left;
+				final int hRL0 = height(nRL);
+				final int hRR0 = height(nR.right);
+				if (hRR0 >= hRL0) {
+					return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL0, hRR0);
+				} else {
+					synchronized (nRL) {
+						final int hRL = nRL.height;
+						if (hRR0 >= hRL) {
+							return rotateLeft_nl(nParent, n, hL0, nR, nRL, hRL, hRR0);
+						} else {
+							final int hRLR = height(nRL.right);
+							final int b = hRR0 - hRLR;
+							if (b >= -1 && b <= 1 && !((hRR0 == 0 || hRLR == 0) && !nR.present)) {
+							   return rotateLeftOverRight_nl(nParent, n, hL0, nR, nRL, hRR0, hRLR);
+							}
+							if (b >= -1 && b <= 1 && !nR.present) {
+								return spliceRoutingRight_nl(nParent, n, hL0, nR, nRL, hRR0, hRLR);
+							}
+							if (hRL - hRR0 <= 1) {
+								return rotateRight_nl(n, nR, nRL, hRR0, height(nRL.left), nRL.right, hRLR);
+							}
+						}
+					}
+					return rebalanceToRight_nl(n, nR, nRL, hRR0);
+				}
+			}
+		}
+	}
+
+    private Node rotateRight_nl(final Node nParent,
+            final Node n,
+            final Node nL,
+            final int hR,
+            final int hLL,
+            final Node nLR,
+            final int hLR) {
+    	final long nodeOVL = n.version;
+    	final long leftOVL = nL.version;
+
+        final Node nPL = nParent.left;
+
+        // n loses nL's keys, nL gains n's right side
+        n.version = beginShrink(nodeOVL);
+        nL.version = beginGrow(leftOVL);
+
+        n.left = nLR;
+        if (nLR != null) {
+            nLR.parent = n;
+        }
+
+        nL.right = n;
+        n.parent = nL;
+
+        if (nPL == n) {
+            nParent.left = nL;
+        } else {
+            nParent.right = nL;
+        }
+        nL.parent = nParent;
+
+        // fix up heights links
+        final int hNRepl = 1 + Math.max(hLR, hR);
+        n.height = hNRepl;
+        nL.height = 1 + Math.max(hLL, hNRepl);
+
+        n.version = endShrink(nodeOVL);
+        nL.version = endGrow(leftOVL);
+
+        // We have damaged nParent, n (now parent.child.right), and nL (now
+        // parent.child).  n is the deepest.  Perform as many fixes as we can
+        // with the locks we've got.
+
+        // We've already fixed the height for n, but it might still be outside
+        // our allowable balance range.  In that case a simple fixHeight_nl
+        // won't help.
+        final int balN = hLR - hR;
+        if (balN < -1 || balN > 1) {
+            // we need another rotation at n
+            return n;
+        }
+
+        // we've fixed balance and height damage for n, now handle
+        // extra-routing node damage
+        if ((nLR == null || hR == 0) && !n.present) {
+            // we need to remove n and then repair
+            return n;
+        }
+
+        // we've already fixed the height at nL, do we need a rotation here?
+        final int balL = hLL - hNRepl;
+        if (balL < -1 || balL > 1) {
+            return nL;
+        }
+
+        // nL might also have routing node damage (if nL.left was null)
+        if (hLL == 0 && !nL.present) {
+            return nL;
+        }
+
+        // try to fix the parent height while we've still got the lock
+        return fixHeight_nl(nParent);
+    }
+
+    private Node rotateLeft_nl(final Node nParent,
+            final Node n,
+            final int hL,
+            final Node nR,
+            final Node nRL,
+            final int hRL,
+            final int hRR) {
+    	final long nodeOVL = n.version;
+    	final long rightOVL = nR.version;
+
+        final Node nPL = nParent.left;
+
+        n.version = beginShrink(nodeOVL);
+        nR.version = beginGrow(rightOVL);
+
+        // fix up n links, careful to be compatible with concurrent traversal for all but n
+        n.right = nRL;
+        if (nRL != null) {
+            nRL.parent = n;
+        }
+
+        nR.left = n;
+        n.parent = nR;
+
+        if (nPL == n) {
+            nParent.left = nR;
+        } else {
+            nParent.right = nR;
+        }
+        nR.parent = nParent;
+
+        // fix up heights
+        final int  hNRepl = 1 + Math.max(hL, hRL);
+        n.height = hNRepl;
+        nR.height = 1 + Math.max(hNRepl, hRR);
+
+        n.version = endShrink(nodeOVL);
+        nR.version = endGrow(rightOVL);
+
+        final int balN = hRL - hL;
+        if (balN < -1 || balN > 1) {
+            return n;
+        }
+
+        if ((nRL == null || hL == 0) && !n.present) {
+            return n;
+        }
+
+        final int balR = hRR - hNRepl;
+        if (balR < -1 || balR > 1) {
+            return nR;
+        }
+
+        if (hRR == 0 && !nR.present) {
+            return nR;
+        }
+
+        return fixHeight_nl(nParent);
+    }
+
+    private Node rotateRightOverLeft_nl(final Node nParent,
+            final Node n,
+            final Node nL,
+            final int hR,
+            final int hLL,
+            final Node nLR,
+            final int hLRL) {
+    	final long nodeOVL = n.version;
+        final long leftOVL = nL.version;
+        final long leftROVL = nLR.version;
+
+        final Node nPL = nParent.left;
+        final Node nLRL = nLR.left;
+        final Node nLRR = nLR.right;
+        final int hLRR = height(nLRR);
+
+        // n and nL both lose keys to nLR, which ends up above them
+        n.version = beginShrink(nodeOVL);
+        nL.version = beginShrink(leftOVL);
+        nLR.version = beginGrow(leftROVL);
+
+        // fix up n links, careful about the order!
+        n.left = nLRR;
+        if (nLRR != null) {
+            nLRR.parent = n;
+        }
+
+        nL.right = nLRL;
+        if (nLRL != null) {
+            nLRL.parent = nL;
+        }
+
+        nLR.left = nL;
+        nL.parent = nLR;
+        nLR.right = n;
+        n.parent = nLR;
+
+        if (nPL == n) {
+            nParent.left = nLR;
+        } else {
+            nParent.right = nLR;
+        }
+        nLR.parent = nParent;
+
+        // fix up heights
+        final int hNRepl = 1 + Math.max(hLRR, hR);
+        n.height = hNRepl;
+        final int hLRepl = 1 + Math.max(hLL, hLRL);
+        nL.height = hLRepl;
+        nLR.height = 1 + Math.max(hLRepl, hNRepl);
+
+        n.version = endShrink(nodeOVL);
+        nL.version = endShrink(leftOVL);
+        nLR.version = endGrow(leftROVL);
+
+        // caller should have performed only a single rotation if nL was going
+        // to end up damaged, or splices it out right after
+        assert(Math.abs(hLL - hLRL) <= 1);
+
+        // We have damaged nParent, nLR (now parent.child), and n (now
+        // parent.child.right).  n is the deepest.  Perform as many fixes as we
+        // can with the locks we've got.
+
+        // We've already fixed the height for n, but it might still be outside
+        // our allowable balance range.  In that case a simple fixHeight_nl
+        // won't help.
+        final int balN = hLRR - hR;
+        if (balN < -1 || balN > 1) {
+            // we need another rotation at n
+            return n;
+        }
+
+        // n might also be damaged by being an unnecessary routing node
+        if ((nLRR == null || hR == 0) && !n.present) {
+            // repair involves splicing out n and maybe more rotations
+            return n;
+        }
+
+        // we've already fixed the height at nLR, do we need a rotation here?
+        final int balLR = hLRepl - hNRepl;
+        if (balLR < -1 || balLR > 1) {
+            return nLR;
+        }
+
+        // try to fix the parent height while we've still got the lock
+        return fixHeight_nl(nParent);
+    }
+
+    private Node rotateLeftOverRight_nl(final Node nParent,
+            final Node n,
+            final int hL,
+            final Node nR,
+            final Node nRL,
+            final int hRR,
+            final int hRLR) {
+    	final long nodeOVL = n.version;
+        final long rightOVL = nR.version;
+        final long rightLOVL = nRL.version;
+
+        final Node nPL = nParent.left;
+        final Node nRLL = nRL.left;
+        final Node nRLR = nRL.right;
+        final int hRLL = height(nRLL);
+
+        n.version = beginShrink(nodeOVL);
+        nR.version = beginShrink(rightOVL);
+        nRL.version = beginGrow(rightLOVL);
+
+        // fix up n links, careful about the order!
+        n.right = nRLL;
+        if (nRLL != null) {
+            nRLL.parent = n;
+        }
+
+        nR.left = nRLR;
+        if (nRLR != null) {
+            nRLR.parent = nR;
+        }
+
+        nRL.right = nR;
+        nR.parent = nRL;
+        nRL.left = n;
+        n.parent = nRL;
+
+        if (nPL == n) {
+            nParent.left = nRL;
+        } else {
+            nParent.right = nRL;
+        }
+        nRL.parent = nParent;
+
+        // fix up heights
+        final int hNRepl = 1 + Math.max(hL, hRLL);
+        n.height = hNRepl;
+        final int hRRepl = 1 + Math.max(hRLR, hRR);
+        nR.height = hRRepl;
+        nRL.height = 1 + Math.max(hNRepl, hRRepl);
+
+        n.version = endShrink(nodeOVL);
+        nR.version = endShrink(rightOVL);
+        nRL.version = endGrow(rightLOVL);
+
+        assert(Math.abs(hRR - hRLR) <= 1);
+
+        final int balN = hRLL - hL;
+        if (balN < -1 || balN > 1) {
+            return n;
+        }
+        if ((nRLL == null || hL == 0) && !n.present) {
+            return n;
+        }
+        final int balRL = hRRepl - hNRepl;
+        if (balRL < -1 || balRL > 1) {
+            return nRL;
+        }
+        return fixHeight_nl(nParent);
+    }
+
+
+	// n is two higher on the left, nL leans right and is a routing node
+	// that either has no left child or would lose its right one to a
+	// double rotation.  Everything from nParent down to nLR is locked.
+	// Returns a damaged node, like the rotations.
+	private Node spliceRoutingLeft_nl(final Node nParent,
+			final Node n,
+			final Node nL,
+			final int hR,
+			final int hLL,
+			final Node nLR,
+			final int hLRL) {
+		if (hLL == 0) {
+			// unlinkable already, n gets nLR and another look
+			attemptUnlink_nl(n, nL);
+			return n;
+		}
+		final Node damaged = rotateRightOverLeft_nl(nParent, n, nL, hR, hLL, nLR, hLRL);
+		// nL now hangs below nLR with only its left child, which takes its
+		// place at the same height as nL's right sibling n, or lower
+		attemptUnlink_nl(nLR, nL);
+		nLR.height = 1 + Math.max(height(nLR.left), height(nLR.right));
+		return damaged;
+	}
+
+	private Node spliceRoutingRight_nl(final Node nParent,
+			final Node n,
+			final int hL,
+			final Node nR,
+			final Node nRL,
+			final int hRR,
+			final int hRLR) {
+		if (hRR == 0) {
+			attemptUnlink_nl(n, nR);
+			return n;
+		}
+		final Node damaged = rotateLeftOverRight_nl(nParent, n, hL, nR, nRL, hRR, hRLR);
+		attemptUnlink_nl(nRL, nR);
+		nRL.height = 1 + Math.max(height(nRL.left), height(nRL.right));
+		return damaged;
+	}
+
+	private boolean attemptUnlink_nl(final Node parent, final Node node) {
+	    // assert (Thread.holdsLock(parent));
+	    // assert (Thread.holdsLock(node));
+	    assert (!isUnlinked(parent.version));
+
+	    final Node parentL = parent.left;
+	    final Node  parentR = parent.right;
+	    if (parentL != node && parentR != node) {
+	        // node is no longer a child of parent
+	        return false;
+	    }
+
+	    assert (!isUnlinked(node.version));
+	    assert (parent == node.parent);
+
+	    final Node left = node.left;
+	    final Node right = node.right;
+	    if (left != null && right != null) {
+	        // splicing is no longer possible
+	        return false;
+	    }
+	    final Node splice = left != null ? left : right;
+
+	    if (parentL == node) {
+	        parent.left = splice;
+	    } else {
+	        parent.right = splice;
+	    }
+	    if (splice != null) {
+	        splice.parent = parent;
+	    }
+
+	    node.version = Unlinked;
+	    if (!node.present) {
+	        routing.decrement();
+	    }
+	    node.present = false;
+	    reclaimer.retire(node);
+
+	    return true;
+	}
+
+	private Node newNode(Search s, Node parent) {
+		Node node = pool.poll();
+		if(node == null)
+			return s.newNode(parent);
+		s.store(node);
+		node.height = 1;
+		node.version = 0;
+		node.left = node.right = null;
+		node.parent = parent;
+		node.present = true;
+		return node;
+	}
+}
@@ -0,0 +1,831 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.LongAdder;
+
+import stanford.Epoch;
+
+// Core of the lock-free BSTs, whatever their key type.  Nodes hold no
+// key here, subclasses add one.  Every search carries its key in a Seek
+// of the subclass, and the removal protocol, which searches for the key
+// of a node it holds, gets one from seek(node).
+
+abstract class AbstractLockFreeBST {
+	// Explicit sentinels instead of reserved keys: root[0] sorts below
+	// every key and root[1] above, see cmp().  Neither has a key.
+	Node[] root;
+	Helping helping;
+	// locate cleanups so far, for the harness
+	final LongAdder helped = new LongAdder();
+	// ADAPTIVE: per thread, how many of its recent operations ran into a
+	// marked link, as a moving average in 1/256ths
+	final ThreadLocal<int[]> markRate = ThreadLocal.withInitial(() -> new int[1]);
+	// what the add, tryFlag and tryMark loops do after a failed CAS
+	Backoff backoff;
+	
+	// Removed nodes may still be in use by a helper, they only come back
+	// through the reclaimer once every operation that could see them is
+	// over.  Every public operation holds a ticket for its whole run.
+	NodePool<Node> pool = new NodePool<Node>();
+	EpochReclaimer<Node> reclaimer = new EpochReclaimer<Node>(pool::offer);
+	
+	// What locate does about a marked link in its way.  LAZY passes it and
+	// leaves the cleanup to the remove that marked it, which is cheapest
+	// when removes are rare.  EAGER cleans it out first, so a delete-heavy
+	// load does not keep walking over half-deleted nodes.  ADAPTIVE lets
+	// each thread help only while its own recent operations keep running
+	// into marked links.
+	public enum Helping { LAZY, EAGER, ADAPTIVE }
+	
+	AbstractLockFreeBST(Helping helping, Backoff backoff) {
+		root = new Node[2];
+		root[0] = new Node();
+		root[1] = new Node();
+		root[0].set(edgeTo(root[0], Edge.THREAD),
+							edgeTo(root[1], Edge.THREAD),
+							root[1],   // backlink
+							null);     // prelink
+		root[1].set(edgeTo(root[0], 0),
+							edgeTo(null, Edge.THREAD),
+							null,      // backlink
+							null);     // prelink
+
+		this.helping = helping;
+		this.backoff = backoff;
+	}
+	
+	// Marked links cleaned out of the way by searches so far
+	public long helped() {
+		return helped.sum();
+	}
+
+	// The operations of the subclasses, each under a ticket of its own
+	final boolean insert(Seek s) {
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			return add(s);
+		} finally {
+			ticket.leave(0);
+		}
+	}
+
+	final boolean delete(Seek s) {
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			return remove(s);
+		} finally {
+			ticket.leave(0);
+		}
+	}
+
+	final boolean find(Seek s) {
+		Epoch.Ticket ticket = reclaimer.enter();
+		try {
+			boolean found = locate(s, false, helps()) == EQUAL;
+			observe(s);
+			return found;
+		} finally {
+			ticket.leave(0);
+		}
+	}
+
+	// caller holds a ticket
+	private boolean add(Seek s) {
+		Node node = null;
+		int fails = 0;
+		boolean help = helps();
+		while(true) {
+			int dir = locate(s, false, help);
+			if(dir == EQUAL) {
+				observe(s);
+				if(node != null)
+					pool.offer(node); // lost a race, but never linked
+				return false;
+			} else {
+				// only allocate once the key is known to be missing
+				if(node == null)
+					node = newNode(s);
+				Node curr = s.curr;
+				// a left thread points back at curr itself, a right one at
+				// its successor, either way that is the new node's successor
+				Node R = s.link.getReference();
+				
+				node.right = edgeTo(R, Edge.THREAD);
+				node.backlink = curr;
+				if(curr.casChild(dir, R, node, Edge.THREAD, 0)) {
+					backoff.succeeded(fails);
+					observe(s);
+					return true;
+				} else {
+					backoff.failed(++fails);
+					// CAS fails, check if link has been marked, flagged, or a new Node was just
+					// inserted. If marked or flagged, first help cleaning and
+					// start over from the top, curr may be gone by then
+					Edge newR = curr.child(dir);
+					if(newR.getReference() == R && newR.thread()) {
+						if(newR.mark())
+							cleanMark(curr, dir);
+						else if(newR.flag())
+							cleanFlag(curr, R, true);
+						s.prev = root[1];
+						s.curr = root[0];
+					}
+				}
+			}
+		}
+	}
+
+	// caller holds a ticket
+	private boolean remove(Seek s) {
+		// stop at the strict predecessor, whose order-link points at the key
+		int dir = locate(s, true, helps());
+		observe(s);
+		Node curr = s.curr;
+		Node next = s.link.getReference();
+		if(next == root[1] || cmp(s, next) != EQUAL)
+			return false;
+		else {
+			// if someone else flagged it first, help them.  Either way the
+			// node has to be gone before returning, or this thread could
+			// still find it with its next call.
+			boolean result = tryFlag(curr, next, true);
+			Edge link = curr.child(dir);
+			if(result || (link.getReference() == next && link.flag())) {
+				cleanFlag(curr, next, true);
+				while(!unlinked(next))
+					cleanMark(next, RIGHT);
+				// no link leads to it any more, only threads that are
+				// still in an operation can have it
+				if(result)
+					reclaimer.retire(next);
+			}
+			
+			return result;
+		}
+	}
+	
+	// A threaded right link points straight at the successor, otherwise
+	// the successor is the leftmost node of the right subtree
+	final Node successor(Node node) {
+		Edge R = node.child(1);
+		Node next = R.getReference();
+		if(R.thread() || next == null)
+			return next;
+		while(true) {
+			Edge L = next.child(0);
+			if(L == null || L.thread())
+				return next;
+			next = L.getReference();
+		}
+	}
+	
+	// The node the search s last turned away from on the side given, over
+	// child links only: for RIGHT the smallest key above that of s, for
+	// LEFT the largest below, or the sentinel on that side if there is none
+	final Node closest(Seek s, int side) {
+		Node curr = root[0], best = root[side == LEFT ? 0 : 1];
+		while(true) {
+			int dir = cmp(s, curr);
+			if(dir == EQUAL)
+				dir = side;
+			else if(dir != side)
+				best = curr;
+			Edge link = curr.child(dir);
+			if(link.thread())
+				return best;
+			curr = link.getReference();
+		}
+	}
+	
+	// A search for one key, and the in/out position of locate: where to
+	// start, from the top at first, and where it stopped
+	abstract class Seek {
+		Node prev = root[1], curr = root[0];
+		// the thread link of curr it stopped at, as it was read.  Reading
+		// it again may already give another node.
+		Edge link;
+		// passed or cleaned a marked link on the way
+		boolean marked;
+		
+		// the key against the one of node, a key node in the tree
+		abstract int compareTo(Node node);
+		
+		// a new node holding the key
+		abstract Node newNode();
+		
+		// puts the key into a node taken from the pool
+		abstract void store(Node node);
+	}
+	
+	// A search for the key of node
+	abstract Seek seek(Node node);
+	
+	// The keys of two key nodes, compared
+	abstract int compare(Node a, Node b);
+	
+	// Walks down from s.curr and leaves s.prev/s.curr at the last link
+	// followed.  Returns EQUAL when s.curr holds the key of s, otherwise
+	// the direction of the thread link of s.curr that the key falls into.
+	// A strict search treats the key as larger than any key equal to it,
+	// so it stops at the strict predecessor whose order-link points at it.
+	private int locate(Seek s, boolean strict) {
+		return locate(s, strict, false);
+	}
+	
+	// With help set, a node found half-deleted is cleaned out of the way
+	// first and the search starts over.  The cleanup itself searches
+	// again, those searches never help or they could recurse forever.
+	private int locate(Seek s, boolean strict, boolean help) {
+		Node prev = s.prev, curr = s.curr;
+		try {
+			while(true) {
+				int dir = cmp(s, curr);
+				if(dir == EQUAL) {
+					if(!strict)
+						return dir;
+					dir = LEFT;
+				}
+				Edge R = curr.child(dir);
+				
+				if(R.mark() && dir == RIGHT)
+					s.marked = true;
+				// Eager-helping 
+				if(help && R.mark() && dir == RIGHT) {
+					helped.increment();
+					cleanMark(curr, dir);
+					prev = root[1];
+					curr = root[0];
+					continue;
+				}
+				
+				Node next = R.getReference();
+				if(R.thread()) {
+					int nDir = dir == LEFT ? LEFT : cmp(s, next);
+					if(nDir == LEFT || (strict && nDir == EQUAL)) {
+						s.link = R;
+						return dir;
+					}
+				}
+				prev = curr; curr = next;
+			}
+		} finally {
+			s.prev = prev; s.curr = curr;
+		}
+	}
+	
+	static final int ONE = 256;
+	
+	// Whether this operation helps, see Helping.  An adaptive thread starts
+	// once one in eight of its operations meets a marked link.
+	private boolean helps() {
+		switch(helping) {
+		case EAGER:
+			return true;
+		case ADAPTIVE:
+			return markRate.get()[0] >= ONE / 8;
+		default:
+			return false;
+		}
+	}
+	
+	// Folds what the operation's search met into this thread's rate
+	private void observe(Seek s) {
+		if(helping == Helping.ADAPTIVE) {
+			int[] r = markRate.get();
+			r[0] += ((s.marked ? ONE : 0) - r[0]) >> 4;
+		}
+	}
+	
+	private Node newNode(Seek s) {
+		Node node = pool.poll();
+		if(node == null)
+			node = s.newNode();
+		else {
+			s.store(node);
+			node.prelink = null;
+		}
+		node.left = node.edge(Edge.THREAD);
+		return node;
+	}
+	
+	static final int EQUAL = 2;
+	static final int RIGHT = 1;
+	static final int LEFT = 0;
+	
+	private int cmp(Seek s, Node node) {
+		if(node == root[0]) return RIGHT;
+		if(node == root[1]) return LEFT;
+		int c = s.compareTo(node);
+		if(c == 0) return EQUAL;
+		else if(c > 0) return RIGHT;
+		else return LEFT;
+	}
+	
+	private int cmp(Node a, Node b) {
+		if(a == b) return EQUAL;
+		if(a == root[0] || b == root[1]) return LEFT;
+		if(a == root[1] || b == root[0]) return RIGHT;
+		int c = compare(a, b);
+		if(c == 0) return EQUAL;
+		else if(c > 0) return RIGHT;
+		else return LEFT;
+	}
+	
+	// Flags the link that points at curr: its order-link when isThread,
+	// its parent link otherwise.  prev is where that link is expected to
+	// be.  Returns false when someone else flagged it first or curr is no
+	// longer in the tree.
+	private boolean tryFlag(Node prev, Node curr, boolean isThread) {
+		int t = isThread ? Edge.THREAD : 0;
+		int fails = 0;
+		while(true) {
+			int pDir = cmp(curr, prev) & 1; // 2 maps to 0: the left self-thread
+			if(prev.casChild(pDir, curr, curr, t, Edge.FLAG + t)) {
+				backoff.succeeded(fails);
+				return true;
+			}
+			backoff.failed(++fails);
+			
+			Edge newR = prev.child(pDir);
+			if(newR.getReference() == curr) {
+				if(newR.flag()) return false;
+				else if(newR.mark())
+					cleanMark(prev, pDir);
+			}
+			
+			// find whoever holds the link now
+			Seek s = seek(curr);
+			int dir = locate(s, isThread);
+			if(isThread) {
+				if(s.link.getReference() != curr)
+					return false;
+				prev = s.curr;
+			} else {
+				if(dir != EQUAL || s.curr != curr)
+					return false;
+				prev = s.prev;
+			}
+		}
+	}
+	
+	// Marks a link of curr so that it can no longer change, helping any
+	// removal that has flagged it first.  A flagged left self-thread means
+	// curr's own removal is pending, that flag is kept.
+	private void tryMark(Node curr, int dir) {
+		int fails = 0;
+		while(true) {
+			Edge next = curr.child(dir);
+			if(next.mark())
+				break;
+			else if(next.flag()) {
+				if(!next.thread()) {
+					cleanFlag(curr, next.getReference(), false);
+					continue;
+				} else if(dir == RIGHT) {
+					cleanFlag(curr, next.getReference(), true);
+					continue;
+				}
+			}
+			
+			if(curr.casChild(dir, next.getReference(), next.getReference(),
+					next.getStamp(), next.getStamp() | Edge.MARK)) {
+				backoff.succeeded(fails);
+				break;
+			}
+			backoff.failed(++fails);
+		}	
+	}
+	
+	private void cleanFlag(Node prev, Node curr, boolean isThread) {
+		if(isThread) {
+			// cleaning a flagged order-link: curr is being deleted, its
+			// successor goes first if that one is being deleted too
+			while(true) {
+				Edge next = curr.child(RIGHT);
+				if(next.mark())
+					break;
+				else if(next.flag()) {
+					cleanFlag(curr, next.getReference(), next.thread());
+				} else {
+					// nothing can get in between curr and its predecessor
+					// any more, so this stays valid once the link is marked.
+					// A predecessor still moving up for another deletion has
+					// a stale order-link, help that move along first.
+					Node preNode = predecessor(curr);
+					Edge order = preNode.child(preNode == curr ? LEFT : RIGHT);
+					if(order.getReference() != curr || !order.thread()) {
+						if(order.thread() && order.flag())
+							cleanFlag(preNode, order.getReference(), true);
+						continue;
+					}
+					if(curr.prelink != preNode)
+						curr.prelink = preNode;
+					if(curr.casChild(RIGHT, next.getReference(), next.getReference(),
+							next.getStamp(), next.getStamp() | Edge.MARK))
+						break;
+				}
+			}
+			cleanMark(curr, RIGHT);
+		} else {
+			// cleaning a flagged parent-link
+			Edge right = curr.child(RIGHT);
+			if(right.mark()) {
+				// the node is getting deleted
+				Edge left = curr.child(LEFT);
+				Node preNode = curr.prelink;
+				if(left.getReference() != preNode) {
+					// category 3: freeze its left link and the predecessor's
+					// one, then move the predecessor up into its place
+					tryMark(curr, LEFT);
+					if(freeze(preNode, curr, prev))
+						cleanMark(preNode, LEFT);
+				} else {
+					int pDir = cmp(curr, prev) & 1;
+					Node R = right.getReference();
+					int rT = right.thread() ? Edge.THREAD : 0;
+					if(left.getReference() == curr) {
+						// category 1: no left child, the right one takes over
+						prev.casChild(pDir, curr, R, Edge.FLAG, rT);
+						if(rT == 0)
+							R.casBacklink(curr, prev);
+					} else {
+						// category 2: the left child is the predecessor and
+						// takes curr's place.  Its flagged order-link keeps
+						// it in place until it has taken the right link over.
+						prev.casChild(pDir, curr, preNode, Edge.FLAG, 0);
+						preNode.casBacklink(curr, prev);
+						finishMove(preNode, curr);
+					}
+				}
+			} else if(right.flag() && right.thread()) {
+				// the node is moving to replace its successor, which needs
+				// its parent link flagged as well
+				Node delNode = right.getReference();
+				Node parent;
+				while(true) {
+					if(!movingUp(curr, delNode))
+						return; // the move is already done
+					parent = parent(delNode);
+					if(parent == null)
+						parent = delNode.backlink;
+					int pDir = cmp(delNode, parent) & 1;
+					Edge p = parent.child(pDir);
+					if(p.getReference() == curr)
+						break; // delNode already unlinked, only the rest is left
+					else if(p.getReference() != delNode)
+						continue;
+					else if(p.mark()) cleanMark(parent, pDir);
+					else if(p.flag()) break;
+					else if(parent.casChild(pDir, delNode, delNode, 0, Edge.FLAG))
+						break;
+				}
+				cleanFlag(parent, delNode, false);
+			}
+		}
+	}
+	
+	private void cleanMark(Node curr, int markDir) {
+		if(markDir == RIGHT) {
+			// the node is getting deleted, unlink it from its parent or
+			// have its predecessor take its place
+			while(true) {
+				Edge left = curr.child(LEFT);
+				Node preNode = curr.prelink;
+				if(preNode == left.getReference()) {
+					// category 1,2
+					Node parent = parent(curr);
+					if(parent == null)
+						break; // done by someone else
+					int pDir = cmp(curr, parent) & 1;
+					Edge p = parent.child(pDir);
+					if(p.getReference() == curr) {
+						if(p.mark()) {
+							cleanMark(parent, pDir);
+							continue;
+						}
+						if(p.flag() || parent.casChild(pDir, curr, curr, 0, Edge.FLAG)) {
+							cleanFlag(parent, curr, false);
+							break;
+						}
+					} else if(movingUp(preNode, curr) && parent(preNode) != curr) {
+						// category 2 with the predecessor already in its place
+						finishMove(preNode, curr);
+						break;
+					}
+				} else {
+					// category 3: the predecessor is the right child of
+					// preParent.  Flagging that link also settles the
+					// category, the left child can only turn into the
+					// predecessor by a removal that needs this link.
+					if(!movingUp(preNode, curr))
+						break; // done by someone else
+					Node preParent = parent(preNode);
+					if(preParent == null)
+						continue;
+					Edge p = preParent.child(RIGHT);
+					if(p.getReference() != preNode || p.thread() || !linked(curr)) {
+						// no longer below preParent, it is on its way up already
+						cleanMark(preNode, LEFT);
+						break;
+					} else {
+						if(p.mark()) {
+							cleanMark(preParent, RIGHT);
+							continue;
+						}
+						if(p.flag()) {
+							cleanFlag(preParent, preNode, false);
+							break;
+						}
+						if(preParent.casChild(RIGHT, preNode, preNode, 0, Edge.FLAG)) {
+							if(!movingUp(preNode, curr) || !linked(curr)) {
+								// finished in the meantime, the flag is not ours
+								preParent.casChild(RIGHT, preNode, preNode, Edge.FLAG, 0);
+								break;
+							}
+							cleanFlag(preParent, preNode, false);
+							break;
+						}
+					}
+				}
+				if(unlinked(curr))
+					break;
+			}
+			
+		} else { // left link
+			Edge left = curr.child(LEFT), right = curr.child(RIGHT);
+			if(right.mark()) {
+				// the left link of a node getting deleted, carry on with that
+				cleanMark(curr, RIGHT);
+			} else if(right.flag() && right.thread() && left.mark()) {
+				// curr moves up into the place of its successor delNode:
+				// its left subtree goes to preParent, then it takes over
+				// delNode's left subtree and parent link, staying frozen
+				// until it is in place.  Dropping the flagged order-link
+				// comes last, that is what ends the removal of delNode.
+				Node delNode = right.getReference();
+				Node delNodeL = delNode.child(LEFT).getReference();
+				
+				if(left.getReference() != delNodeL) {
+					// a pending removal of curr moves along with its order-link
+					Node preParent = parent(curr);
+					if(preParent != null) {
+						int lT = left.thread() ? Edge.THREAD | (left.getStamp() & Edge.FLAG) : 0;
+						if(preParent.casChild(RIGHT, curr, left.getReference(), Edge.FLAG, lT)
+								&& !left.thread())
+							left.getReference().casBacklink(curr, preParent);
+					}
+					// only once curr is out of its old place, and only the
+					// frozen link read above
+					if(linked(curr))
+						return;
+					curr.casEdge(LEFT, left, edgeTo(delNodeL, Edge.MARK));
+				}
+				if(curr.child(LEFT).getReference() != delNodeL)
+					return;
+				
+				Node delNodePa = parent(delNode);
+				if(delNodePa != null) {
+					int pDir = cmp(delNode, delNodePa) & 1;
+					delNodeL.casBacklink(delNode, curr);
+					if(delNodePa.casChild(pDir, delNode, curr, Edge.FLAG, 0))
+						curr.backlink = delNodePa;
+				}
+				if(!linked(delNode)) {
+					// only the mark of this move, a later removal of curr
+					// marks the same link again once the move is over
+					Edge frozen = curr.child(LEFT);
+					if(frozen.getReference() == delNodeL && frozen.mark() && movingUp(curr, delNode))
+						curr.casEdge(LEFT, frozen, edgeTo(delNodeL, 0));
+					finishMove(curr, delNode);
+				}
+			} else if(right.flag() && right.thread()) {
+				// past the left link already, only the tail end is left
+				Node delNode = right.getReference();
+				if(!linked(delNode))
+					finishMove(curr, delNode);
+			}
+		}
+	}
+	
+	// Last step of a move, and of a category 2 removal: curr, now in
+	// delNode's place, takes delNode's right link over
+	private void finishMove(Node curr, Node delNode) {
+		Edge delNodeR = delNode.child(RIGHT);
+		int drT = delNodeR.thread() ? Edge.THREAD : 0;
+		if(curr.casChild(RIGHT, delNode, delNodeR.getReference(), Edge.FLAG + Edge.THREAD, drT)
+				&& drT == 0)
+			delNodeR.getReference().casBacklink(delNode, curr);
+	}
+	
+	// Marks the left link of preNode before it moves up into the place of
+	// delNode.  Only while delNode is still linked below delNodePa, so that
+	// a late helper never freezes a node that has moved already.
+	private boolean freeze(Node preNode, Node delNode, Node delNodePa) {
+		int pDir = cmp(delNode, delNodePa) & 1;
+		while(true) {
+			Edge L = preNode.child(LEFT);
+			if(L.mark())
+				return true;
+			if(!movingUp(preNode, delNode) || delNodePa.child(pDir).getReference() != delNode)
+				return false;
+			if(L.flag() && !L.thread()) {
+				cleanFlag(preNode, L.getReference(), false);
+				continue;
+			}
+			// a flagged self-thread means preNode's own removal is pending,
+			// the flag stays
+			Edge frozen = edgeTo(L.getReference(), L.getStamp() | Edge.MARK);
+			if(preNode.casEdge(LEFT, L, frozen)) {
+				if(movingUp(preNode, delNode) && delNodePa.child(pDir).getReference() == delNode)
+					return true;
+				// the move finished and the link came back to the same
+				// value in the meantime, the mark is not ours
+				preNode.casEdge(LEFT, frozen, L);
+				return false;
+			}
+		}
+	}
+	
+	// preNode still holds the flagged order-link of its successor delNode
+	private boolean movingUp(Node preNode, Node delNode) {
+		Edge R = preNode.child(RIGHT);
+		return R.getReference() == delNode && R.flag() && R.thread();
+	}
+	
+	// The node whose order-link points at node: the rightmost one of its
+	// left subtree, or node itself through its left self-thread
+	private Node predecessor(Node node) {
+		Edge L = node.child(LEFT);
+		if(L.thread())
+			return node;
+		Node next = L.getReference();
+		while(true) {
+			Edge R = next.child(RIGHT);
+			if(R.thread())
+				return next;
+			next = R.getReference();
+		}
+	}
+	
+	// Parent of node through a child link.  Backlinks are only updated
+	// after the fact and may fall behind, then the parent is searched for
+	// and the backlink repaired.  Null once node is out of the tree.  A
+	// backlink that is itself being deleted is not trusted either, a
+	// late repair may have pointed it at a node that already went away.
+	private Node parent(Node node) {
+		Node parent = node.backlink;
+		Edge p = parent.child(cmp(node, parent) & 1);
+		if(p.getReference() == node && !p.thread() && !parent.child(RIGHT).mark())
+			return parent;
+		
+		Seek s = seek(node);
+		if(locate(s, false) != EQUAL || s.curr != node)
+			return null;
+		p = s.prev.child(cmp(node, s.prev) & 1);
+		if(p.getReference() != node || p.thread())
+			return parent; // only reachable through a thread right now
+		node.casBacklink(parent, s.prev);
+		return s.prev;
+	}
+	
+	// node still hangs off a child link.  Once a moving predecessor has
+	// taken its place only that predecessor's order-link reaches it.
+	private boolean linked(Node node) {
+		Seek s = seek(node);
+		if(locate(s, false) != EQUAL || s.curr != node)
+			return false;
+		Edge p = s.prev.child(cmp(node, s.prev) & 1);
+		return p.getReference() == node && !p.thread();
+	}
+	
+	private boolean unlinked(Node node) {
+		Seek s = seek(node);
+		return locate(s, false) != EQUAL || s.curr != node;
+	}
+	
+	// Immutable (reference, THREAD/MARK/FLAG bits) value of a child link.
+	// Every node caches the edges pointing at itself, so swinging a link
+	// with casChild() allocates nothing once a combination has been used.
+	// Marking a link is the exception, see Node.edge().
+	class Edge {
+		public static final int THREAD = 0x01;
+		public static final int MARK   = 0x02;
+		public static final int FLAG   = 0x04;
+
+		final Node ref;
+		final int bits;
+
+		Edge(Node ref, int bits) {
+			this.ref = ref;
+			this.bits = bits;
+		}
+		
+		public Node getReference() { return ref; }
+		public int getStamp() { return bits; }
+		
+		public boolean thread() {
+			 return (bits & THREAD) != 0;
+		}
+		
+		public boolean mark() {
+			 return (bits & MARK) != 0;
+		}
+		
+		public boolean flag() {
+			 return (bits & FLAG) != 0;
+		}
+	}
+	
+	// Canonical edges for links that point at nothing
+	private final Edge[] nullEdges = new Edge[8];
+	
+	private Edge edgeTo(Node ref, int bits) {
+		if(ref != null)
+			return ref.edge(bits);
+		if((bits & Edge.MARK) != 0)
+			return new Edge(null, bits);
+		Edge e = nullEdges[bits];
+		if(e == null)
+			nullEdges[bits] = e = new Edge(null, bits);
+		return e;
+	}
+	
+	private static final VarHandle LEFT_LINK, RIGHT_LINK, BACKLINK;
+	static {
+		try {
+			MethodHandles.Lookup l = MethodHandles.lookup();
+			LEFT_LINK = l.findVarHandle(AbstractLockFreeBST.Node.class, "left", AbstractLockFreeBST.Edge.class);
+			RIGHT_LINK = l.findVarHandle(AbstractLockFreeBST.Node.class, "right", AbstractLockFreeBST.Edge.class);
+			BACKLINK = l.findVarHandle(AbstractLockFreeBST.Node.class, "backlink", AbstractLockFreeBST.Node.class);
+		} catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	// Everything but the edges is inline, the links being updated through
+	// VarHandles like the child links.  Subclasses add the key.
+	class Node {
+		public void set(Edge child0,
+				Edge child1,
+				Node backlink,
+				Node prelink) {
+			this.left = child0;         // left child
+			this.right = child1;        // right child
+			this.backlink = backlink;   // successor
+			this.prelink = prelink;     // predecessor
+		}
+		
+		volatile Edge left, right;
+		volatile Node backlink, prelink;
+		
+		// The edges pointing at this node, one per combination of THREAD
+		// and FLAG, filled in lazily.  A racing duplicate is harmless: CAS
+		// compares against what was read.  Marked edges are never shared,
+		// so a helper holding one can tell its mark from a later one with
+		// the same bits (see casEdge).
+		private Edge plain, thread, flagged, flaggedThread;
+		
+		public Edge edge(int bits) {
+			Edge e;
+			switch(bits) {
+			case 0:
+				if((e = plain) == null) plain = e = new Edge(this, bits);
+				return e;
+			case Edge.THREAD:
+				if((e = thread) == null) thread = e = new Edge(this, bits);
+				return e;
+			case Edge.FLAG:
+				if((e = flagged) == null) flagged = e = new Edge(this, bits);
+				return e;
+			case Edge.FLAG | Edge.THREAD:
+				if((e = flaggedThread) == null) flaggedThread = e = new Edge(this, bits);
+				return e;
+			default:
+				return new Edge(this, bits);
+			}
+		}
+		
+		public Edge child(int dir) {
+			return (dir == 0) ? left : right;
+		}
+		
+		// Same contract as AtomicStampedReference.compareAndSet
+		public boolean casChild(int dir, Node expectedRef, Node newRef, int expectedBits, int newBits) {
+			Edge current = child(dir);
+			if(current.ref != expectedRef || current.bits != expectedBits)
+				return false;
+			Edge update = edgeTo(newRef, newBits);
+			if(update == current)
+				return true;
+			return casEdge(dir, current, update);
+		}
+		
+		// Compares the edge itself, not the reference and bits it holds
+		public boolean casEdge(int dir, Edge current, Edge update) {
+			return (dir == 0 ? LEFT_LINK : RIGHT_LINK).compareAndSet(this, current, update);
+		}
+		
+		public boolean casBacklink(Node expected, Node update) {
+			return BACKLINK.compareAndSet(this, expected, update);
+		}
+	}
+}
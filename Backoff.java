@@ -0,0 +1,114 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+// What a CAS retry loop does after losing a race.  One instance belongs to
+// one tree and is shared by all its threads.  A loop reports each failed
+// CAS with the number of failures so far, and the CAS that finally went
+// through with the same count.  Failures are counted for the harness.
+public abstract class Backoff {
+	private final LongAdder failures = new LongAdder();
+
+	// The attempt-th CAS in a row of this loop failed, starting at 1
+	public void failed(int attempt) {
+		failures.increment();
+		pause(attempt);
+	}
+
+	// The loop's CAS went through after attempts failures
+	public void succeeded(int attempts) {}
+
+	// Failed CASes reported so far
+	public long failures() {
+		return failures.sum();
+	}
+
+	protected abstract void pause(int attempt);
+
+	// Retry right away
+	public static Backoff none() {
+		return new Backoff() {
+			protected void pause(int attempt) {}
+			public String toString() { return "none"; }
+		};
+	}
+
+	// Spin for a random 0..window iterations, the window starting at base
+	// and doubling with every failure up to cap
+	public static Backoff exponential(final int base, final int cap) {
+		return new Backoff() {
+			protected void pause(int attempt) {
+				spin(ThreadLocalRandom.current().nextInt(window(base, cap, attempt) + 1));
+			}
+			public String toString() { return "exponential[" + base + "," + cap + "]"; }
+		};
+	}
+
+	// Exponential, but only as far as this thread's loops have been failing
+	// lately, see Adaptive
+	public static Backoff adaptive(int base, int cap) {
+		return new Adaptive(base, cap);
+	}
+
+	// Parses "none", "exponential[:base[:cap]]" or "adaptive[:base[:cap]]"
+	public static Backoff parse(String spec) {
+		String[] arg = spec.split(":");
+		int base = arg.length > 1 ? Integer.parseInt(arg[1]) : 16;
+		int cap = arg.length > 2 ? Integer.parseInt(arg[2]) : 4096;
+		switch(arg[0]) {
+		case "none":
+			return none();
+		case "exponential":
+			return exponential(base, cap);
+		case "adaptive":
+			return adaptive(base, cap);
+		default:
+			throw new IllegalArgumentException("unknown backoff " + spec);
+		}
+	}
+
+	static int window(int base, int cap, int attempt) {
+		int shift = Math.min(attempt - 1, 30);
+		return (int) Math.min(cap, (long) base << shift);
+	}
+
+	static void spin(int n) {
+		for(int i = 0; i < n; i++)
+			Thread.onSpinWait();
+	}
+
+	// Keeps a per-thread moving average of how many of its recent loops hit
+	// a failure, in 1/256ths.  Up to 1/8 there is no pause at all, above
+	// that the window is scaled by the rate, so a single lost race on a
+	// quiet tree, which takes the rate from 0 to exactly 1/8, retries at
+	// once while a hot spot backs off in full.
+	private static class Adaptive extends Backoff {
+		static final int ONE = 256;
+		final int base, cap;
+		final ThreadLocal<int[]> rate = ThreadLocal.withInitial(() -> new int[1]);
+
+		Adaptive(int base, int cap) {
+			this.base = base;
+			this.cap = cap;
+		}
+
+		protected void pause(int attempt) {
+			int[] r = rate.get();
+			if(attempt == 1)
+				r[0] += (ONE - r[0]) >> 3;
+			if(r[0] <= ONE / 8)
+				return;
+			int window = (int) ((long) window(base, cap, attempt) * r[0] / ONE);
+			spin(ThreadLocalRandom.current().nextInt(window + 1));
+		}
+
+		@Override
+		public void succeeded(int attempts) {
+			if(attempts == 0) {
+				int[] r = rate.get();
+				r[0] -= r[0] >> 3;
+			}
+		}
+
+		public String toString() { return "adaptive[" + base + "," + cap + "]"; }
+	}
+}
@@ -0,0 +1,235 @@
+// Coarse-grained AVL tree: same single lock as LockbasedBST, but the
+// depth stays O(log n) so the critical section stays short
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.*;
+
+public class BalancedLockbasedBST<T extends Comparable<T>> implements Tree<T> {
+	Lock master;
+	Node root;
+
+	// set by the recursive helpers, only read while holding master
+	private boolean changed;
+
+	public BalancedLockbasedBST() {
+		master = new ReentrantLock();
+		root = null;
+	}
+
+	@Override
+	public boolean add(T value) {
+		master.lock();
+		try {
+			changed = false;
+			root = insert(root, value);
+			return changed;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(T value) {
+		master.lock();
+		try {
+			changed = false;
+			root = delete(root, value);
+			return changed;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(T value) {
+		master.lock();
+		try {
+			Node next = root;
+			while(next != null) {
+				int cmp = value.compareTo(next.value);
+				if(cmp == 0)
+					return true;
+				else if(cmp > 0)
+					next = next.rchild;
+				else // less than
+					next = next.lchild;
+			}
+			return false;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	// Bulk operations hold master for the whole batch, the per-key lock()
+	// calls inside are then cheap reentrant acquires by the owner.  Each
+	// key is still looked for from the root, rebalancing after an update
+	// moves the nodes a search could resume from.
+	@Override
+	public int addAll(Collection<? extends T> values) {
+		master.lock();
+		try {
+			return Tree.super.addAll(values);
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public int removeAll(Collection<? extends T> values) {
+		master.lock();
+		try {
+			return Tree.super.removeAll(values);
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsAll(Collection<? extends T> values) {
+		master.lock();
+		try {
+			return Tree.super.containsAll(values);
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public void rangeScan(T from, T to, Consumer<? super T> consumer) {
+		master.lock();
+		try {
+			// in-order walk, skipping subtrees that lie entirely below from
+			ArrayDeque<Node> stack = new ArrayDeque<Node>();
+			Node next = root;
+			while(true) {
+				while(next != null) {
+					if(from.compareTo(next.value) <= 0) {
+						stack.push(next);
+						next = next.lchild;
+					} else {
+						next = next.rchild;
+					}
+				}
+				if(stack.isEmpty())
+					return;
+				next = stack.pop();
+				if(next.value.compareTo(to) >= 0)
+					return;
+				consumer.accept(next.value);
+				next = next.rchild;
+			}
+		} finally {
+			master.unlock();
+		}
+	}
+
+	// Returns the new root of the subtree
+	private Node insert(Node node, T value) {
+		if(node == null) {
+			changed = true;
+			return new Node(value);
+		}
+
+		int cmp = value.compareTo(node.value);
+		if(cmp == 0)
+			return node;
+		else if(cmp > 0)
+			node.rchild = insert(node.rchild, value);
+		else // less than
+			node.lchild = insert(node.lchild, value);
+
+		return changed ? rebalance(node) : node;
+	}
+
+	// Returns the new root of the subtree
+	private Node delete(Node node, T value) {
+		if(node == null)
+			return null;
+
+		int cmp = value.compareTo(node.value);
+		if(cmp > 0) {
+			node.rchild = delete(node.rchild, value);
+		} else if(cmp < 0) {
+			node.lchild = delete(node.lchild, value);
+		} else {
+			changed = true;
+			if(!node.hasLchild())
+				return node.rchild;
+			if(!node.hasRchlid())
+				return node.lchild;
+
+			// has both children, pull up the in-order successor
+			Node succ = node.rchild;
+			while(succ.hasLchild())
+				succ = succ.lchild;
+			node.value = succ.value;
+			node.rchild = deleteMin(node.rchild);
+		}
+
+		return changed ? rebalance(node) : node;
+	}
+
+	private Node deleteMin(Node node) {
+		if(!node.hasLchild())
+			return node.rchild;
+		node.lchild = deleteMin(node.lchild);
+		return rebalance(node);
+	}
+
+	private Node rebalance(Node n) {
+		int bal = height(n.lchild) - height(n.rchild);
+		if(bal > 1) {
+			if(height(n.lchild.lchild) < height(n.lchild.rchild))
+				n.lchild = rotateLeft(n.lchild);
+			return rotateRight(n);
+		} else if(bal < -1) {
+			if(height(n.rchild.rchild) < height(n.rchild.lchild))
+				n.rchild = rotateRight(n.rchild);
+			return rotateLeft(n);
+		}
+		n.fixHeight();
+		return n;
+	}
+
+	private Node rotateRight(Node n) {
+		Node nL = n.lchild;
+		n.lchild = nL.rchild;
+		nL.rchild = n;
+		n.fixHeight();
+		nL.fixHeight();
+		return nL;
+	}
+
+	private Node rotateLeft(Node n) {
+		Node nR = n.rchild;
+		n.rchild = nR.lchild;
+		nR.lchild = n;
+		n.fixHeight();
+		nR.fixHeight();
+		return nR;
+	}
+
+	private int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+
+	private class Node {
+		public Node(T value) {
+			this.value = value;
+			this.height = 1;
+		}
+		T value;
+		int height;
+		Node lchild, rchild;
+
+		public boolean hasLchild() { return lchild != null; }
+		public boolean hasRchlid() { return rchild != null; }
+
+		public void fixHeight() {
+			height = 1 + Math.max(height(lchild), height(rchild));
+		}
+	}
+}
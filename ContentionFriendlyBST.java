@@ -1,26 +1,368 @@
+// Contention-friendly BST (Crain, Gramoli, Raynal)
+//
+// User operations only do the abstract part of the work: add links a new
+// leaf or clears a deleted flag, remove only sets the flag.  A single
+// background maintenance thread does the structural part, unlinking deleted
+// nodes that have at most one child and rotating to keep the tree balanced.
+// The only locks user operations take are on the one node they modify.
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 public class ContentionFriendlyBST<T extends Comparable<T>> implements Tree<T> {
+	final Node head; // sentinel, the real root hangs off head.rchild
+	final Thread maintenance;
+	volatile boolean stopped;
+	// a logical add or remove happened since the maintenance thread last
+	// looked, see touch
+	volatile boolean dirty;
+
+	// an idle maintenance thread waits twice as long each time it finds
+	// nothing to do, up to the maximum
+	static final long MinIdleParkNanos = 1000000L;  // 1 ms
+	static final long MaxIdleParkNanos = 64000000L; // 64 ms
+
+	public ContentionFriendlyBST() {
+		head = new Node(null, false);
+		stopped = false;
+		maintenance = new Thread(new Runnable() {
+			public void run() {
+				long idle = MinIdleParkNanos;
+				boolean changed = false;
+				while(!stopped) {
+					// a pass that changed something may have left work
+					// for the next one, otherwise only updates make any
+					if(dirty) {
+						dirty = false;
+						idle = MinIdleParkNanos;
+					} else if(!changed) {
+						LockSupport.parkNanos(idle);
+						idle = Math.min(2 * idle, MaxIdleParkNanos);
+						continue;
+					}
+					changed = restructure();
+				}
+			}
+		}, "ContentionFriendlyBST-maintenance");
+		maintenance.setDaemon(true);
+		maintenance.start();
+	}
+
+	/** Stops the maintenance thread, the tree stays usable but is no longer
+	 *  rebalanced nor cleaned of deleted nodes. */
+	public void shutdown() {
+		stopped = true;
+		LockSupport.unpark(maintenance);
+	}
 
 	@Override
 	public boolean add(T value) {
-		// TODO Auto-generated method stub
-		return false;
+		Node node = null;
+		while(true) {
+			Node curr = find(value);
+			int cmp = compare(value, curr);
+			synchronized(curr) {
+				if(curr.removed)
+					continue; // unlinked or rotated away, retry
+				if(cmp == 0) {
+					if(!curr.deleted)
+						return false;
+					curr.deleted = false;
+					touch();
+					return true;
+				}
+				if(curr.child(cmp > 0) != null)
+					continue; // someone inserted here first
+				if(node == null)
+					node = new Node(value, false);
+				curr.setChild(cmp > 0, node);
+				touch();
+				return true;
+			}
+		}
 	}
 
 	@Override
 	public boolean remove(T value) {
-		// TODO Auto-generated method stub
-		return false;
+		while(true) {
+			Node curr = find(value);
+			if(compare(value, curr) != 0)
+				return false;
+			synchronized(curr) {
+				if(curr.removed)
+					continue;
+				if(curr.deleted)
+					return false;
+				curr.deleted = true;
+				touch();
+				return true;
+			}
+		}
 	}
 
 	@Override
 	public boolean contains(T value) {
-		// TODO Auto-generated method stub
-		return false;
+		Node curr = find(value);
+		return compare(value, curr) == 0 && !curr.deleted;
+	}
+
+	// Lock-free and weakly consistent: each step looks up the next larger
+	// key that is not deleted, starting again from the top.
+	@Override
+	public void rangeScan(T from, T to, Consumer<? super T> consumer) {
+		Node curr = ceiling(from, true);
+		while(curr != null && curr.value.compareTo(to) < 0) {
+			consumer.accept(curr.value);
+			curr = ceiling(curr.value, false);
+		}
+	}
+
+	// Node with the smallest key >= from (> from unless inclusive) that is
+	// not deleted, or null
+	private Node ceiling(T from, boolean inclusive) {
+		while(true) {
+			Node best = null;
+			Node curr = head;
+			while(curr != null) {
+				int cmp = compare(from, curr);
+				if(cmp == 0 && inclusive) {
+					best = curr;
+					break;
+				} else if(cmp < 0) {
+					best = curr;
+					curr = curr.lchild;
+				} else
+					curr = curr.rchild;
+			}
+
+			// a deleted node may still route to live keys below it, so
+			// carry on from its key rather than from its ancestors
+			if(best == null || !best.deleted)
+				return best;
+			from = best.value;
+			inclusive = false;
+		}
+	}
+
+	// Returns the node holding value, or the node whose child link value
+	// would be inserted under.  Never blocks; a removed node's links point
+	// back to its former parent so a traversal that reached it carries on.
+	private Node find(T value) {
+		Node curr = head;
+		while(true) {
+			int cmp = compare(value, curr);
+			if(cmp == 0)
+				return curr;
+			Node next = curr.child(cmp > 0);
+			if(next == null)
+				return curr;
+			curr = next;
+		}
+	}
+
+	// Only written when it changes, so updates mostly just read the line
+	private void touch() {
+		if(!dirty)
+			dirty = true;
+	}
+
+	private int compare(T value, Node node) {
+		return node == head ? 1 : value.compareTo(node.value);
+	}
+
+	////////////////////////////// maintenance //////////////////////////////
+	// Everything below runs only on the maintenance thread, which is the
+	// only thread changing the shape of the tree.  It locks top-down
+	// (parent, node, child), user operations lock a single node, so there
+	// is no lock order to violate.
+
+	// The pass keeps its own stack, the tree may be far out of balance by
+	// the time it gets there, a sorted run of inserts makes it a list.
+	// Frames are kept for the next pass, the first depth are in use.
+	private final ArrayList<Frame> frames = new ArrayList<Frame>();
+
+	// parent.child(isRight) was n when it was pushed, entered counts the
+	// subtrees of n already pushed
+	private class Frame {
+		Node parent, n;
+		boolean isRight;
+		int entered;
+	}
+
+	// Post-order pass over the whole tree.  Returns true if the structure
+	// changed.
+	private boolean restructure() {
+		if(!push(0, head, true))
+			return false;
+		boolean changed = false;
+		int depth = 1;
+		while(depth > 0) {
+			Frame f = frames.get(depth - 1);
+			if(f.entered < 2) {
+				// the right child is read only once the left subtree is done
+				boolean isRight = f.entered++ == 1;
+				if(push(depth, f.n, isRight))
+					depth++;
+				continue;
+			}
+			changed |= restructure(f.parent, f.isRight, f.n);
+			f.parent = f.n = null;
+			depth--;
+		}
+		return changed;
+	}
+
+	// Pushes parent.child(isRight) as frame i, false if there is none
+	private boolean push(int i, Node parent, boolean isRight) {
+		Node n = parent.child(isRight);
+		if(n == null)
+			return false;
+		if(i == frames.size())
+			frames.add(new Frame());
+		Frame f = frames.get(i);
+		f.parent = parent;
+		f.n = n;
+		f.isRight = isRight;
+		f.entered = 0;
+		return true;
+	}
+
+	// n = parent.child(isRight) once both its subtrees are done.  Returns
+	// true if the structure changed.
+	private boolean restructure(Node parent, boolean isRight, Node n) {
+		boolean changed = false;
+		if(n.deleted && (n.lchild == null || n.rchild == null)) {
+			if(remove(parent, isRight))
+				return true;
+		}
+
+		propagate(n);
+		if(n.lheight - n.rheight >= 2) {
+			Node nL = n.lchild;
+			if(nL.lheight < nL.rheight)
+				changed |= rotateLeft(n, false) != null;
+			changed |= rotateRight(parent, isRight) != null;
+		} else if(n.rheight - n.lheight >= 2) {
+			Node nR = n.rchild;
+			if(nR.rheight < nR.lheight)
+				changed |= rotateRight(n, true) != null;
+			changed |= rotateLeft(parent, isRight) != null;
+		}
+		return changed;
 	}
-	
-	private boolean remove(Node parent, Node leftchild) {
-		
+
+	private void propagate(Node n) {
+		n.lheight = (n.lchild == null) ? 0 : n.lchild.height;
+		n.rheight = (n.rchild == null) ? 0 : n.rchild.height;
+		n.height = 1 + Math.max(n.lheight, n.rheight);
+	}
+
+	// Physically unlinks parent.child(isRight) if it is still deleted and
+	// has at most one child
+	private boolean remove(Node parent, boolean isRight) {
+		synchronized(parent) {
+			Node n = parent.child(isRight);
+			if(parent.removed || n == null)
+				return false;
+			synchronized(n) {
+				if(n.removed || !n.deleted)
+					return false;
+				Node child;
+				if(n.lchild == null)
+					child = n.rchild;
+				else if(n.rchild == null)
+					child = n.lchild;
+				else
+					return false; // got a second child in the meantime
+
+				parent.setChild(isRight, child);
+				n.lchild = parent;
+				n.rchild = parent;
+				n.removed = true;
+			}
+		}
+		return true;
 	}
 
+	// Rotates parent.child(isRight) to the right.  The node moving down is
+	// replaced with a fresh copy so that traversals already standing on it
+	// still find every key below it.  Returns the new subtree root.
+	private Node rotateRight(Node parent, boolean isRight) {
+		synchronized(parent) {
+			Node n = parent.child(isRight);
+			if(parent.removed || n == null)
+				return null;
+			synchronized(n) {
+				Node nL = n.lchild;
+				if(n.removed || nL == null)
+					return null;
+				synchronized(nL) {
+					Node copy = new Node(n.value, n.deleted);
+					copy.lchild = nL.rchild;
+					copy.rchild = n.rchild;
+					propagate(copy);
+
+					nL.rchild = copy;
+					parent.setChild(isRight, nL);
+					n.removed = true;
+
+					propagate(nL);
+					return nL;
+				}
+			}
+		}
+	}
+
+	// Mirror image of rotateRight
+	private Node rotateLeft(Node parent, boolean isRight) {
+		synchronized(parent) {
+			Node n = parent.child(isRight);
+			if(parent.removed || n == null)
+				return null;
+			synchronized(n) {
+				Node nR = n.rchild;
+				if(n.removed || nR == null)
+					return null;
+				synchronized(nR) {
+					Node copy = new Node(n.value, n.deleted);
+					copy.rchild = nR.lchild;
+					copy.lchild = n.lchild;
+					propagate(copy);
+
+					nR.lchild = copy;
+					parent.setChild(isRight, nR);
+					n.removed = true;
+
+					propagate(nR);
+					return nR;
+				}
+			}
+		}
+	}
+
+
+	private class Node {
+		public Node(T value, boolean deleted) {
+			this.value = value;
+			this.deleted = deleted;
+			this.height = 1;
+		}
+		final T value;
+		volatile Node lchild, rchild;
+		volatile boolean deleted;   // logically removed
+		volatile boolean removed;   // physically unlinked, or replaced by a rotation
+
+		// only touched by the maintenance thread
+		int lheight, rheight, height;
+
+		public Node child(boolean isRight) { return isRight ? rchild : lchild; }
+
+		public void setChild(boolean isRight, Node child) {
+			if(isRight)
+				rchild = child;
+			else
+				lchild = child;
+		}
+	}
 }
@@ -0,0 +1,144 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import stanford.Epoch;
+
+// Epoch-based reclamation on top of stanford.Epoch.  Every operation on a
+// tree runs between enter() and leave() on the ticket it returns.  A node
+// goes to retire() once it has been unlinked, and is handed to release
+// after every operation that was running at that point has finished, so
+// that no thread can still be looking at it.
+//
+// Generations follow each other like the epochs of CopyOnWriteManager:
+// the next one is installed before the current one begins to close, and
+// only once the one before has closed, so at most two are open at a time.
+// When a generation closes, every thread that arrived before its successor
+// has left, which covers anyone who could have seen a node retired while
+// it was current.
+//
+// Each thread keeps the nodes it retired in its own limbo list and
+// releases them itself, a couple on each later retire(), so they go back
+// to the pool of the thread that removed them at about the rate it takes
+// them out again.  A generation held open by a preempted thread would
+// otherwise free a long backlog in one go, more than a pool keeps.
+public class EpochReclaimer<N> {
+	static final int DEFAULT_BATCH = 64;
+
+	private final Consumer<? super N> release;
+	private final int batch;
+	private final AtomicReference<Generation> current;
+	private final ThreadLocal<Limbo> local = ThreadLocal.withInitial(Limbo::new);
+
+	public EpochReclaimer(Consumer<? super N> release) {
+		this(release, DEFAULT_BATCH);
+	}
+
+	public EpochReclaimer(Consumer<? super N> release, int batch) {
+		this.release = release;
+		this.batch = batch;
+		this.current = new AtomicReference<Generation>(new Generation(null));
+	}
+
+	// Call leave(0) on the ticket once the operation is done
+	public Epoch.Ticket enter() {
+		while(true) {
+			Epoch.Ticket ticket = current.get().attemptArrive();
+			if(ticket != null)
+				return ticket;
+			// closing, its successor is current already
+		}
+	}
+
+	// node is unlinked, operations starting from now on can not reach it
+	public void retire(N node) {
+		Limbo limbo = local.get();
+		Generation g = current.get();
+		if(limbo.gen != g) {
+			if(limbo.size > 0)
+				limbo.seal();
+			limbo.gen = g;
+		}
+		limbo.nodes[limbo.size++] = node;
+		if(limbo.size == batch) {
+			limbo.seal();
+			advance(g);
+		}
+		limbo.reclaim();
+	}
+
+	// Only moves on once the generation before g has closed
+	private void advance(Generation g) {
+		if(g.prev != null)
+			return;
+		Generation next = new Generation(g);
+		if(current.compareAndSet(g, next)) {
+			g.next = next;
+			g.beginClose();
+		}
+	}
+
+	private class Generation extends Epoch {
+		// still open predecessor, null once it has closed
+		volatile Generation prev;
+		volatile boolean closed;
+		Generation next;
+
+		Generation(Generation prev) {
+			this.prev = prev;
+		}
+
+		@Override
+		protected void onClosed(int dataSum) {
+			closed = true;
+			next.prev = null;
+		}
+	}
+
+	// Nodes retired while gen was current
+	private static class Batch<G> {
+		final G gen;
+		final Object[] nodes;
+		final int size;
+		int released;
+
+		Batch(G gen, Object[] nodes, int size) {
+			this.gen = gen;
+			this.nodes = nodes;
+			this.size = size;
+		}
+	}
+
+	private class Limbo {
+		// the batch being filled
+		Generation gen;
+		Object[] nodes = new Object[batch];
+		int size;
+		// full ones, oldest first
+		final ArrayDeque<Batch<Generation>> sealed = new ArrayDeque<Batch<Generation>>();
+		Object[] spare;
+
+		void seal() {
+			sealed.addLast(new Batch<Generation>(gen, nodes, size));
+			nodes = spare != null ? spare : new Object[batch];
+			spare = null;
+			size = 0;
+		}
+
+		// generations close in order, so only the oldest needs a look
+		@SuppressWarnings("unchecked")
+		void reclaim() {
+			for(int n = 0; n < 2 && !sealed.isEmpty(); n++) {
+				Batch<Generation> b = sealed.peekFirst();
+				if(!b.gen.closed)
+					return;
+				release.accept((N) b.nodes[b.released]);
+				b.nodes[b.released++] = null;
+				if(b.released == b.size) {
+					sealed.pollFirst();
+					spare = b.nodes;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,202 @@
+// Fine-grained BST: per-node locks acquired hand-over-hand (lock coupling)
+
+import java.util.concurrent.locks.*;
+import java.util.function.Consumer;
+
+public class HandOverHandBST<T extends Comparable<T>> implements Tree<T> {
+	Node head; // sentinel, the real root hangs off head.rchild
+
+	public HandOverHandBST() {
+		head = new Node(null);
+	}
+
+	@Override
+	public boolean add(T value) {
+		Node parent = head;
+		parent.lock.lock();
+		try {
+			Node next = head.rchild;
+			int cmp = 1; // the root is the right child of head
+
+			while(next != null) {
+				next.lock.lock();
+				parent.lock.unlock();
+				parent = next;
+
+				cmp = value.compareTo(next.value);
+				if(cmp == 0) {
+					return false;
+				} else if(cmp > 0) {
+					next = next.rchild;
+				} else { // less than
+					next = next.lchild;
+				}
+			}
+
+			if(cmp > 0)
+				parent.rchild = new Node(value);
+			else // less than
+				parent.lchild = new Node(value);
+		} finally {
+			parent.lock.unlock();
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean remove(T value) {
+		Node parent = head;
+		parent.lock.lock();
+		Node next = head.rchild;
+
+		// Search with both parent and next locked, so that next can be unlinked
+		try {
+			while(true) {
+				if(next == null) {
+					parent.lock.unlock();
+					return false;
+				}
+
+				next.lock.lock();
+				int cmp = value.compareTo(next.value);
+				if(cmp == 0)
+					break; // Found!
+
+				parent.lock.unlock();
+				parent = next;
+				next = (cmp > 0) ? next.rchild : next.lchild;
+			}
+		} catch(RuntimeException e) {
+			next.lock.unlock();
+			parent.lock.unlock();
+			throw e;
+		}
+
+		try {
+			if(!next.hasLchild()) {
+				parent.replaceChild(next, next.rchild);
+			}
+
+			else if(!next.hasRchlid()) {
+				parent.replaceChild(next, next.lchild);
+			}
+
+			else { // has both children
+				// Walk down to the in-order successor, still hand-over-hand,
+				// but never releasing next since its value gets overwritten
+				Node succParent = next;
+				Node succ = next.rchild;
+				succ.lock.lock();
+				while(succ.hasLchild()) {
+					Node child = succ.lchild;
+					child.lock.lock();
+					if(succParent != next)
+						succParent.lock.unlock();
+					succParent = succ;
+					succ = child;
+				}
+
+				next.value = succ.value;
+				if(succParent == next)
+					succParent.rchild = succ.rchild;
+				else
+					succParent.lchild = succ.rchild;
+
+				if(succParent != next)
+					succParent.lock.unlock();
+				succ.lock.unlock();
+			}
+		} finally {
+			next.lock.unlock();
+			parent.lock.unlock();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean contains(T value) {
+		Node parent = head;
+		parent.lock.lock();
+		try {
+			Node next = head.rchild;
+			while(next != null) {
+				next.lock.lock();
+				parent.lock.unlock();
+				parent = next;
+
+				int cmp = value.compareTo(next.value);
+				if(cmp == 0)
+					return true;
+				else if(cmp > 0)
+					next = next.rchild;
+				else // less than
+					next = next.lchild;
+			}
+			return false;
+		} finally {
+			parent.lock.unlock();
+		}
+	}
+
+	// Each step is a separate lock-coupled descent for the next larger key,
+	// so no lock is held while the consumer runs and writers are only held
+	// up for one root-to-leaf walk at a time.
+	@Override
+	public void rangeScan(T from, T to, Consumer<? super T> consumer) {
+		T value = ceiling(from, true);
+		while(value != null && value.compareTo(to) < 0) {
+			consumer.accept(value);
+			value = ceiling(value, false);
+		}
+	}
+
+	// Smallest key >= from (> from unless inclusive), or null
+	private T ceiling(T from, boolean inclusive) {
+		Node parent = head;
+		parent.lock.lock();
+		try {
+			T best = null;
+			Node next = head.rchild;
+			while(next != null) {
+				next.lock.lock();
+				parent.lock.unlock();
+				parent = next;
+
+				int cmp = from.compareTo(next.value);
+				if(cmp == 0 && inclusive)
+					return next.value;
+				else if(cmp < 0) {
+					best = next.value;
+					next = next.lchild;
+				} else
+					next = next.rchild;
+			}
+			return best;
+		} finally {
+			parent.lock.unlock();
+		}
+	}
+
+
+	private class Node {
+		public Node(T value) {
+			this.value = value;
+			this.lock = new ReentrantLock();
+		}
+		T value;
+		Node lchild, rchild;
+		final Lock lock;
+
+		public boolean hasLchild() { return lchild != null; }
+		public boolean hasRchlid() { return rchild != null; }
+
+		// caller holds the lock of this node and of oldChild
+		public void replaceChild(Node oldChild, Node newChild) {
+			if(lchild == oldChild)
+				lchild = newChild;
+			else
+				rchild = newChild;
+		}
+	}
+}
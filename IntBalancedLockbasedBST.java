@@ -0,0 +1,165 @@
+// Coarse-grained AVL tree on primitive int keys, see BalancedLockbasedBST
+
+import java.util.concurrent.locks.*;
+
+public class IntBalancedLockbasedBST implements IntTree {
+	Lock master;
+	Node root;
+
+	// set by the recursive helpers, only read while holding master
+	private boolean changed;
+
+	public IntBalancedLockbasedBST() {
+		master = new ReentrantLock();
+		root = null;
+	}
+
+	@Override
+	public boolean add(int value) {
+		master.lock();
+		try {
+			changed = false;
+			root = insert(root, value);
+			return changed;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public boolean remove(int value) {
+		master.lock();
+		try {
+			changed = false;
+			root = delete(root, value);
+			return changed;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public boolean contains(int value) {
+		master.lock();
+		try {
+			Node next = root;
+			while(next != null) {
+				if(value == next.value)
+					return true;
+				else if(value > next.value)
+					next = next.rchild;
+				else // less than
+					next = next.lchild;
+			}
+			return false;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	// Returns the new root of the subtree
+	private Node insert(Node node, int value) {
+		if(node == null) {
+			changed = true;
+			return new Node(value);
+		}
+
+		if(value == node.value)
+			return node;
+		else if(value > node.value)
+			node.rchild = insert(node.rchild, value);
+		else // less than
+			node.lchild = insert(node.lchild, value);
+
+		return changed ? rebalance(node) : node;
+	}
+
+	// Returns the new root of the subtree
+	private Node delete(Node node, int value) {
+		if(node == null)
+			return null;
+
+		if(value > node.value) {
+			node.rchild = delete(node.rchild, value);
+		} else if(value < node.value) {
+			node.lchild = delete(node.lchild, value);
+		} else {
+			changed = true;
+			if(!node.hasLchild())
+				return node.rchild;
+			if(!node.hasRchlid())
+				return node.lchild;
+
+			// has both children, pull up the in-order successor
+			Node succ = node.rchild;
+			while(succ.hasLchild())
+				succ = succ.lchild;
+			node.value = succ.value;
+			node.rchild = deleteMin(node.rchild);
+		}
+
+		return changed ? rebalance(node) : node;
+	}
+
+	private Node deleteMin(Node node) {
+		if(!node.hasLchild())
+			return node.rchild;
+		node.lchild = deleteMin(node.lchild);
+		return rebalance(node);
+	}
+
+	private Node rebalance(Node n) {
+		int bal = height(n.lchild) - height(n.rchild);
+		if(bal > 1) {
+			if(height(n.lchild.lchild) < height(n.lchild.rchild))
+				n.lchild = rotateLeft(n.lchild);
+			return rotateRight(n);
+		} else if(bal < -1) {
+			if(height(n.rchild.rchild) < height(n.rchild.lchild))
+				n.rchild = rotateRight(n.rchild);
+			return rotateLeft(n);
+		}
+		n.fixHeight();
+		return n;
+	}
+
+	private Node rotateRight(Node n) {
+		Node nL = n.lchild;
+		n.lchild = nL.rchild;
+		nL.rchild = n;
+		n.fixHeight();
+		nL.fixHeight();
+		return nL;
+	}
+
+	private Node rotateLeft(Node n) {
+		Node nR = n.rchild;
+		n.rchild = nR.lchild;
+		nR.lchild = n;
+		n.fixHeight();
+		nR.fixHeight();
+		return nR;
+	}
+
+	private static int height(Node node) {
+		return node == null ? 0 : node.height;
+	}
+
+
+	private static class Node {
+		public Node(int value) {
+			this.value = value;
+			this.height = 1;
+		}
+		int value;
+		int height;
+		Node lchild, rchild;
+
+		public boolean hasLchild() { return lchild != null; }
+		public boolean hasRchlid() { return rchild != null; }
+
+		public void fixHeight() {
+			height = 1 + Math.max(height(lchild), height(rchild));
+		}
+	}
+}
@@ -0,0 +1,60 @@
+// Optimistic concurrent AVL tree on primitive int keys, see
+// AbstractLockAVLTree for how it works.  No ordered traversal, IntTree
+// has none.
+
+public class IntLockAVLTree extends AbstractLockAVLTree implements IntTree {
+	public IntLockAVLTree() {
+		this(Balance.STRICT);
+	}
+
+	public IntLockAVLTree(Balance balance) {
+		super(balance);
+	}
+
+	@Override
+	public boolean add(int value) {
+		return insert(new IntSearch(value));
+	}
+
+	@Override
+	public boolean remove(int value) {
+		return delete(new IntSearch(value));
+	}
+
+	@Override
+	public boolean contains(int value) {
+		return find(new IntSearch(value));
+	}
+
+	private static final class IntSearch extends Search {
+		final int key;
+
+		IntSearch(int key) {
+			this.key = key;
+		}
+
+		@Override
+		int compareTo(Node node) {
+			return Integer.compare(key, ((IntNode) node).key);
+		}
+
+		@Override
+		Node newNode(Node parent) {
+			return new IntNode(key, parent);
+		}
+
+		@Override
+		void store(Node node) {
+			((IntNode) node).key = key;
+		}
+	}
+
+	private static final class IntNode extends Node {
+		int key;
+
+		IntNode(int key, Node parent) {
+			super(1, true, parent);
+			this.key = key;
+		}
+	}
+}
@@ -0,0 +1,74 @@
+// LockFreeBST on primitive int keys: the same threaded tree and removal
+// protocol, see AbstractLockFreeBST, without boxing or compareTo.  No
+// ordered traversal and no padded layout, those stay with the generic
+// class.
+
+public class IntLockFreeBST extends AbstractLockFreeBST implements IntTree {
+	public IntLockFreeBST(boolean eagerHelpingEnabled) {
+		this(eagerHelpingEnabled ? Helping.EAGER : Helping.LAZY);
+	}
+	
+	public IntLockFreeBST(Helping helping) {
+		this(helping, Backoff.none());
+	}
+	
+	public IntLockFreeBST(Helping helping, Backoff backoff) {
+		super(helping, backoff);
+	}
+
+	@Override
+	public boolean add(int value) {
+		return insert(new IntSeek(value));
+	}
+
+	@Override
+	public boolean remove(int value) {
+		return delete(new IntSeek(value));
+	}
+
+	@Override
+	public boolean contains(int value) {
+		return find(new IntSeek(value));
+	}
+	
+	@Override
+	Seek seek(Node node) {
+		return new IntSeek(((IntNode) node).value);
+	}
+	
+	@Override
+	int compare(Node a, Node b) {
+		return Integer.compare(((IntNode) a).value, ((IntNode) b).value);
+	}
+	
+	private final class IntSeek extends Seek {
+		final int key;
+		
+		IntSeek(int key) {
+			this.key = key;
+		}
+		
+		@Override
+		int compareTo(Node node) {
+			return Integer.compare(key, ((IntNode) node).value);
+		}
+		
+		@Override
+		Node newNode() {
+			return new IntNode(key);
+		}
+		
+		@Override
+		void store(Node node) {
+			((IntNode) node).value = key;
+		}
+	}
+	
+	private final class IntNode extends Node {
+		volatile int value;
+		
+		IntNode(int value) {
+			this.value = value;
+		}
+	}
+}
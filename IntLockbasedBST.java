@@ -0,0 +1,126 @@
+// Coarse-grained BST on primitive int keys
+
+import java.util.concurrent.locks.*;
+
+public class IntLockbasedBST implements IntTree {
+	Lock master;
+	Node root;
+
+	public IntLockbasedBST() {
+		master = new ReentrantLock();
+		root = null;
+	}
+
+	@Override
+	public boolean add(int value) {
+		master.lock();
+		try {
+			if(root == null)
+				root = new Node (value);
+			else {
+				Node parent = null;
+				Node next = root;
+
+				while(next != null) {
+					parent = next;
+					if(value == next.value) {
+						return false;
+					} else if(value > next.value) {
+						 next = next.rchild;
+					} else { // less than
+						next = next.lchild;
+					}
+				}
+
+				if(value > parent.value)
+					parent.rchild = new Node(value);
+				else // less than
+					parent.lchild = new Node(value);
+			}
+		} finally {
+			master.unlock();
+		}
+
+		return true;
+	}
+
+	@Override
+	public boolean remove(int value) {
+		master.lock();
+		try {
+			Node parent = null;
+			Node next = root;
+
+			while(true) {
+				if(next == null)
+					return false;
+
+				if(value == next.value)
+					break; // Found!
+
+				parent = next;
+				if(value > next.value) {
+					 next = next.rchild;
+				} else { // less than
+					next = next.lchild;
+				}
+			}
+
+			if(next.lchild == null || next.rchild == null) { // at most one child
+				Node child = (next.lchild != null) ? next.lchild : next.rchild;
+				if(parent == null) // root
+					root = child;
+				else if(parent.lchild == next)
+					parent.lchild = child;
+				else
+					parent.rchild = child;
+			}
+
+			else { // has both children, pull up the in-order successor
+				Node succParent = next;
+				Node succ = next.rchild;
+				while(succ.lchild != null) {
+					succParent = succ;
+					succ = succ.lchild;
+				}
+
+				next.value = succ.value;
+				if(succParent == next)
+					succParent.rchild = succ.rchild;
+				else
+					succParent.lchild = succ.rchild;
+			}
+		} finally {
+			master.unlock();
+		}
+		return true;
+	}
+
+	@Override
+	public boolean contains(int value) {
+		master.lock();
+		try {
+			Node next = root;
+			while(next != null) {
+				if(value == next.value)
+					return true;
+				else if(value > next.value)
+					next = next.rchild;
+				else // less than
+					next = next.lchild;
+			}
+			return false;
+		} finally {
+			master.unlock();
+		}
+	}
+
+
+	private static class Node {
+		public Node(int value) {
+			this.value = value;
+		}
+		int value;
+		Node lchild, rchild;
+	}
+}
@@ -0,0 +1,6 @@
+// Primitive int specialization of Tree<Integer>: no boxing, no compareTo
+public interface IntTree {
+	boolean add(int value);
+	boolean remove(int value);
+	boolean contains(int value);
+}
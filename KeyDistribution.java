@@ -0,0 +1,138 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Key generators for the benchmark harnesses.  One instance is shared by
+// all worker threads, each thread passes in its own random source.
+public abstract class KeyDistribution {
+	public abstract int nextKey(ThreadLocalRandom rand);
+
+	// Uniform over the whole int range
+	public static KeyDistribution uniform() {
+		return new KeyDistribution() {
+			public int nextKey(ThreadLocalRandom rand) { return rand.nextInt(); }
+			public String toString() { return "uniform"; }
+		};
+	}
+
+	// Uniform over [0, range)
+	public static KeyDistribution uniform(final int range) {
+		return new KeyDistribution() {
+			public int nextKey(ThreadLocalRandom rand) { return rand.nextInt(range); }
+			public String toString() { return "uniform[" + range + "]"; }
+		};
+	}
+
+	// Zipfian over [0, range), key k has probability proportional to
+	// 1/(k+1)^theta.  The hot keys are the small ones, so they also share
+	// the upper part of the search paths.
+	public static KeyDistribution zipfian(int range, double theta) {
+		return new Zipfian(range, theta);
+	}
+
+	// hotOps of the draws fall into the first hotKeys of [0, range), the
+	// rest into the remainder, both uniform.  Each part holds at least one
+	// key, so range must be at least 2.  hotKeys and hotOps are fractions
+	// in [0, 1].
+	public static KeyDistribution hotspot(final int range, final double hotKeys, final double hotOps) {
+		if(range < 2)
+			throw new IllegalArgumentException("hotspot needs a range of at least 2, got " + range);
+		if(!(hotKeys >= 0 && hotKeys <= 1))
+			throw new IllegalArgumentException("hotKeys must be in [0, 1], got " + hotKeys);
+		if(!(hotOps >= 0 && hotOps <= 1))
+			throw new IllegalArgumentException("hotOps must be in [0, 1], got " + hotOps);
+		final int hot = Math.max(1, Math.min(range - 1, (int) (range * hotKeys)));
+		return new KeyDistribution() {
+			public int nextKey(ThreadLocalRandom rand) {
+				if(rand.nextDouble() < hotOps)
+					return rand.nextInt(hot);
+				return hot + rand.nextInt(range - hot);
+			}
+			public String toString() { return "hotspot[" + range + "," + hotKeys + "," + hotOps + "]"; }
+		};
+	}
+
+	// 0, 1, 2, ... shared by all threads, wrapping around at range
+	public static KeyDistribution sequential(final int range) {
+		final AtomicInteger next = new AtomicInteger();
+		return new KeyDistribution() {
+			public int nextKey(ThreadLocalRandom rand) {
+				return (next.getAndIncrement() & Integer.MAX_VALUE) % range;
+			}
+			public String toString() { return "sequential[" + range + "]"; }
+		};
+	}
+
+	// Ever increasing keys shared by all threads, never wraps until the
+	// int range is exhausted
+	public static KeyDistribution monotonic() {
+		final AtomicInteger next = new AtomicInteger();
+		return new KeyDistribution() {
+			public int nextKey(ThreadLocalRandom rand) { return next.getAndIncrement(); }
+			public String toString() { return "monotonic"; }
+		};
+	}
+
+	// Parses "uniform", "zipfian[:theta]", "hotspot[:hotKeys[:hotOps]]",
+	// "sequential" or "monotonic" over [0, range).  A range <= 0 with
+	// "uniform" means the whole int range, the others need one of at least
+	// 1, hotspot one of at least 2.
+	public static KeyDistribution parse(String spec, int range) {
+		String[] arg = spec.split(":");
+		int minRange = arg[0].equals("hotspot") ? 2 : 1;
+		if(range < minRange && !arg[0].equals("uniform") && !arg[0].equals("monotonic"))
+			throw new IllegalArgumentException(arg[0] + " needs a key range of at least " + minRange + ", got " + range);
+		switch(arg[0]) {
+		case "uniform":
+			return range <= 0 ? uniform() : uniform(range);
+		case "zipfian":
+			return zipfian(range, arg.length > 1 ? Double.parseDouble(arg[1]) : 0.99);
+		case "hotspot":
+			return hotspot(range,
+					arg.length > 1 ? Double.parseDouble(arg[1]) : 0.1,
+					arg.length > 2 ? Double.parseDouble(arg[2]) : 0.9);
+		case "sequential":
+			return sequential(range);
+		case "monotonic":
+			return monotonic();
+		default:
+			throw new IllegalArgumentException("unknown key distribution " + spec);
+		}
+	}
+
+	// Gray et al., "Quickly generating billion-record synthetic databases",
+	// as used by YCSB.  O(range) setup, O(1) per key.  The closed form only
+	// holds for 0 < theta < 1.
+	private static class Zipfian extends KeyDistribution {
+		final int range;
+		final double theta, alpha, zetan, eta;
+
+		Zipfian(int range, double theta) {
+			if(!(theta > 0 && theta < 1))
+				throw new IllegalArgumentException("theta must be in (0, 1), got " + theta);
+			this.range = range;
+			this.theta = theta;
+			this.alpha = 1.0 / (1.0 - theta);
+			this.zetan = zeta(range, theta);
+			double zeta2 = zeta(2, theta);
+			this.eta = (1 - Math.pow(2.0 / range, 1 - theta)) / (1 - zeta2 / zetan);
+		}
+
+		static double zeta(int n, double theta) {
+			double sum = 0;
+			for(int i = 1; i <= n; i++)
+				sum += 1 / Math.pow(i, theta);
+			return sum;
+		}
+
+		public int nextKey(ThreadLocalRandom rand) {
+			double u = rand.nextDouble();
+			double uz = u * zetan;
+			if(uz < 1.0) return 0;
+			if(uz < 1.0 + Math.pow(0.5, theta)) return 1;
+			int k = (int) (range * Math.pow(eta * u - eta + 1, alpha));
+			return Math.min(k, range - 1);
+		}
+
+		public String toString() { return "zipfian[" + range + "," + theta + "]"; }
+	}
+}
@@ -0,0 +1,68 @@
+// Log-linear latency histogram in the spirit of HdrHistogram: every power
+// of two is split into SUB_BUCKETS linear buckets, so any recorded value is
+// off by at most 1/SUB_BUCKETS.  Not thread-safe, keep one per thread and
+// add() them together at the end.
+public class LatencyHistogram {
+	static final int SUB_BUCKET_BITS = 5;
+	static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	final long[] counts = new long[BUCKETS];
+	long count;
+	long max;
+
+	public void record(long nanos) {
+		if(nanos < 0) nanos = 0;
+		counts[index(nanos)]++;
+		count++;
+		if(nanos > max) max = nanos;
+	}
+
+	public void add(LatencyHistogram other) {
+		for(int i = 0; i < BUCKETS; i++)
+			counts[i] += other.counts[i];
+		count += other.count;
+		if(other.max > max) max = other.max;
+	}
+
+	public void reset() {
+		java.util.Arrays.fill(counts, 0);
+		count = 0;
+		max = 0;
+	}
+
+	public long count() { return count; }
+	public long max() { return max; }
+
+	// Upper bound of the bucket holding the given percentile, in ns
+	public long percentile(double p) {
+		if(count == 0) return 0;
+		long rank = (long) Math.ceil(p / 100.0 * count);
+		if(rank < 1) rank = 1;
+		long seen = 0;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if(seen >= rank)
+				return Math.min(upperBound(i), max);
+		}
+		return max;
+	}
+
+	// Values below SUB_BUCKETS get a bucket each, above that the top
+	// SUB_BUCKET_BITS bits below the leading one pick the sub-bucket
+	static int index(long v) {
+		if(v < SUB_BUCKETS)
+			return (int) v;
+		int exp = 63 - Long.numberOfLeadingZeros(v) - SUB_BUCKET_BITS + 1;
+		int sub = (int) (v >>> (exp - 1)) & (SUB_BUCKETS - 1);
+		return exp * SUB_BUCKETS + sub;
+	}
+
+	static long upperBound(int index) {
+		int exp = index / SUB_BUCKETS;
+		int sub = index % SUB_BUCKETS;
+		if(exp == 0)
+			return sub;
+		return (((long) (SUB_BUCKETS | sub) + 1) << (exp - 1)) - 1;
+	}
+}
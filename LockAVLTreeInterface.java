@@ -1,3 +1,5 @@
+import java.util.function.Consumer;
+
 import stanford.SnapTreeMap;
 
 public class LockAVLTreeInterface<T extends Comparable<T>> implements Tree<T> {
@@ -18,4 +20,12 @@ public class LockAVLTreeInterface<T extends Comparable<T>> implements Tree<T> {
 		return st.containsKey(value);
 	}
 
+	@Override
+	public void rangeScan(T from, T to, Consumer<? super T> consumer) {
+		if(from.compareTo(to) >= 0) return;
+		// SnapTreeMap iterators run over a frozen snapshot of the tree
+		for(T value : st.subMap(from, to).keySet())
+			consumer.accept(value);
+	}
+
 }
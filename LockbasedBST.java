@@ -1,10 +1,16 @@
 // Coarse-grained BST
 
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.function.Consumer;
 import java.util.concurrent.locks.*;
 
-public class LockbasedBST<T extends Comparable<T>> implements Tree<T> {
+public class LockbasedBST<T extends Comparable<T>> extends AbstractCoarseBST<T> {
 	Lock master;
-	Node root;
+	
+	// every access holds master, so a node is free again the moment it
+	// has been unlinked
+	NodePool<Node> pool = new NodePool<Node>();
 	
 	public LockbasedBST() {
 		master = new ReentrantLock();
@@ -16,7 +22,7 @@ public class LockbasedBST<T extends Comparable<T>> implements Tree<T> {
 		master.lock();
 		try {
 			if(root == null)
-				root = new Node (value);
+				root = newNode(value);
 			else {
 				Node parent = null;
 				Node next = root;
@@ -35,9 +41,9 @@ public class LockbasedBST<T extends Comparable<T>> implements Tree<T> {
 				
 				int cmp =  value.compareTo(parent.value);
 				if(cmp > 0)
-					parent.rchild = new Node(value);
+					parent.rchild = newNode(value);
 				else // less than
-					parent.lchild = new Node(value);
+					parent.lchild = newNode(value);
 			}
 		} finally {
 			master.unlock();
@@ -61,59 +67,18 @@ public class LockbasedBST<T extends Comparable<T>> implements Tree<T> {
 					return false;
 				
 				int cmp = value.compareTo(next.value);
+				if(cmp == 0)
+					break; // Found!
 				
 				parent = next;
-				if(cmp == 0) {
-					break; // Found!
-				} else if(cmp > 0) {
+				if(cmp > 0) {
 					 next = next.rchild;
 				} else { // less than
 					next = next.lchild;
 				}
 			}
 			
-			if(next.isLeaf()) { // leaf
-				if(parent == null) { // root
-					root = null;
-				} else if(value.compareTo(parent.value) > 0) {
-					parent.rchild = null;
-				} else {
-					parent.lchild = null;
-				}
-			}
-			
-			else if(!next.hasLchild()) {
-				Node child = next.rchild;
-				next.swap(child);
-				next.lchild = child.lchild;
-				next.rchild = child.rchild;
-			}
-			
-			else if(!next.hasRchlid()) {
-				Node child = next.lchild;
-				next.swap(child);
-				next.lchild = child.lchild;
-				next.rchild = child.rchild;
-			}
-			
-			else { // has both children
-				Node child = next.lchild;
-				parent = null;
-				while(child.hasRchlid()) {
-					parent = child;
-					child = child.rchild;
-				}
-				
-				if(parent == null) {
-					next.swap(child);
-					next.lchild = child.lchild;
-					next.rchild = child.rchild;
-				} else {
-					next.swap(child);
-					parent.rchild = child.lchild;
-				}
-				
-			}
+			unlink(parent, next);
 		} finally {
 			master.unlock();
 		}
@@ -139,23 +104,116 @@ public class LockbasedBST<T extends Comparable<T>> implements Tree<T> {
 			master.unlock();
 		}
 	}
-	
-	
-	private class Node {
-		public Node(T value) {
-			this.value = value;
+
+	// Bulk operations hold master for the whole batch and look for each
+	// key from where the one before was found, see Finger
+	@Override
+	public int addAll(Collection<? extends T> values) {
+		master.lock();
+		try {
+			Finger finger = new Finger();
+			int added = 0;
+			for(T value : values) {
+				if(root == null) {
+					root = newNode(value);
+				} else {
+					int cmp = finger.find(value);
+					if(cmp == 0)
+						continue;
+					if(cmp > 0)
+						finger.last().rchild = newNode(value);
+					else
+						finger.last().lchild = newNode(value);
+				}
+				added++;
+			}
+			return added;
+		} finally {
+			master.unlock();
 		}
-		T value;
-		Node lchild, rchild;
-		
-		public boolean hasLchild() { return lchild != null; }
-		public boolean hasRchlid() { return rchild != null; }
-		public boolean isLeaf() { return lchild == null && rchild == null; } 
-		
-		public void swap(Node other) {
-			T tmp = this.value;
-			this.value = other.value;
-			other.value = tmp; 
+	}
+
+	@Override
+	public int removeAll(Collection<? extends T> values) {
+		master.lock();
+		try {
+			Finger finger = new Finger();
+			int removed = 0;
+			for(T value : values) {
+				if(root == null)
+					break;
+				if(finger.find(value) != 0)
+					continue;
+				Node next = finger.last();
+				unlink(finger.parent(), next);
+				// the keys below next change, the ones above do not
+				finger.backUp();
+				removed++;
+			}
+			return removed;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public boolean containsAll(Collection<? extends T> values) {
+		master.lock();
+		try {
+			Finger finger = new Finger();
+			for(T value : values)
+				if(root == null || finger.find(value) != 0)
+					return false;
+			return true;
+		} finally {
+			master.unlock();
+		}
+	}
+
+	@Override
+	public void rangeScan(T from, T to, Consumer<? super T> consumer) {
+		master.lock();
+		try {
+			// in-order walk, skipping subtrees that lie entirely below from
+			ArrayDeque<Node> stack = new ArrayDeque<Node>();
+			Node next = root;
+			while(true) {
+				while(next != null) {
+					if(from.compareTo(next.value) <= 0) {
+						stack.push(next);
+						next = next.lchild;
+					} else {
+						next = next.rchild;
+					}
+				}
+				if(stack.isEmpty())
+					return;
+				next = stack.pop();
+				if(next.value.compareTo(to) >= 0)
+					return;
+				consumer.accept(next.value);
+				next = next.rchild;
+			}
+		} finally {
+			master.unlock();
 		}
 	}
+	
+	
+	// caller holds master
+	private Node newNode(T value) {
+		Node node = pool.poll();
+		if(node == null)
+			return new Node(value);
+		node.value = value;
+		return node;
+	}
+	
+	// caller holds master
+	@Override
+	void recycle(Node node) {
+		node.value = null;
+		node.lchild = node.rchild = null;
+		pool.offer(node);
+	}
 }
@@ -0,0 +1,32 @@
+import java.util.ArrayDeque;
+
+// Per-thread free lists of tree nodes.  A tree only hands a node back
+// once no other thread can reach it any more: an insert that lost its CAS
+// and was never linked, a node unlinked under a lock that every reader
+// takes as well, or one an EpochReclaimer has let go.  Each thread keeps
+// at most capacity spare nodes, the rest is left to the GC.
+public class NodePool<N> {
+	static final int DEFAULT_CAPACITY = 256;
+
+	private final int capacity;
+	private final ThreadLocal<ArrayDeque<N>> free = ThreadLocal.withInitial(ArrayDeque::new);
+
+	public NodePool() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public NodePool(int capacity) {
+		this.capacity = capacity;
+	}
+
+	// A node released by this thread earlier, or null
+	public N poll() {
+		return free.get().pollFirst();
+	}
+
+	public void offer(N node) {
+		ArrayDeque<N> spare = free.get();
+		if(spare.size() < capacity)
+			spare.addFirst(node);
+	}
+}
@@ -0,0 +1,241 @@
+// Coarse-grained BST with optimistic reads
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.function.Consumer;
+import java.util.concurrent.locks.*;
+
+public class StampedLockBST<T extends Comparable<T>> extends AbstractCoarseBST<T> {
+	StampedLock master;
+
+	public StampedLockBST() {
+		master = new StampedLock();
+		root = null;
+	}
+
+	@Override
+	public boolean add(T value) {
+		long stamp = master.writeLock();
+		try {
+			return insert(value);
+		} finally {
+			master.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean remove(T value) {
+		long stamp = master.writeLock();
+		try {
+			return delete(value);
+		} finally {
+			master.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public boolean contains(T value) {
+		// Optimistic walk: no lock is taken, the stamp tells us afterwards
+		// whether a writer got in the way.  A torn read may also surface as
+		// an exception, which we treat the same as a failed validation.
+		long stamp = master.tryOptimisticRead();
+		if(stamp != 0) {
+			try {
+				boolean found = search(value);
+				if(master.validate(stamp))
+					return found;
+			} catch(RuntimeException e) {
+				if(master.validate(stamp))
+					throw e;
+			}
+		}
+
+		// Conflict with a writer, fall back to a shared read lock
+		stamp = master.readLock();
+		try {
+			return search(value);
+		} finally {
+			master.unlockRead(stamp);
+		}
+	}
+
+	@Override
+	public void rangeScan(T from, T to, Consumer<? super T> consumer) {
+		// the consumer may be slow, so no optimistic attempt here
+		long stamp = master.readLock();
+		try {
+			// in-order walk, skipping subtrees that lie entirely below from
+			ArrayDeque<Node> stack = new ArrayDeque<Node>();
+			Node next = root;
+			while(true) {
+				while(next != null) {
+					if(from.compareTo(next.value) <= 0) {
+						stack.push(next);
+						next = next.lchild;
+					} else {
+						next = next.rchild;
+					}
+				}
+				if(stack.isEmpty())
+					return;
+				next = stack.pop();
+				if(next.value.compareTo(to) >= 0)
+					return;
+				consumer.accept(next.value);
+				next = next.rchild;
+			}
+		} finally {
+			master.unlockRead(stamp);
+		}
+	}
+
+	// Bulk updates take the write stamp once for the whole batch and look
+	// for each key from where the one before was found, see Finger
+	@Override
+	public int addAll(Collection<? extends T> values) {
+		long stamp = master.writeLock();
+		try {
+			Finger finger = new Finger();
+			int added = 0;
+			for(T value : values) {
+				if(root == null) {
+					root = new Node(value);
+				} else {
+					int cmp = finger.find(value);
+					if(cmp == 0)
+						continue;
+					if(cmp > 0)
+						finger.last().rchild = new Node(value);
+					else
+						finger.last().lchild = new Node(value);
+				}
+				added++;
+			}
+			return added;
+		} finally {
+			master.unlockWrite(stamp);
+		}
+	}
+
+	@Override
+	public int removeAll(Collection<? extends T> values) {
+		long stamp = master.writeLock();
+		try {
+			Finger finger = new Finger();
+			int removed = 0;
+			for(T value : values) {
+				if(root == null)
+					break;
+				if(finger.find(value) != 0)
+					continue;
+				unlink(finger.parent(), finger.last());
+				// the keys below that node change, the ones above do not
+				finger.backUp();
+				removed++;
+			}
+			return removed;
+		} finally {
+			master.unlockWrite(stamp);
+		}
+	}
+
+	// One optimistic stamp for the whole batch, same fallback as contains
+	@Override
+	public boolean containsAll(Collection<? extends T> values) {
+		long stamp = master.tryOptimisticRead();
+		if(stamp != 0) {
+			try {
+				boolean found = searchAll(values);
+				if(master.validate(stamp))
+					return found;
+			} catch(RuntimeException e) {
+				if(master.validate(stamp))
+					throw e;
+			}
+		}
+
+		stamp = master.readLock();
+		try {
+			return searchAll(values);
+		} finally {
+			master.unlockRead(stamp);
+		}
+	}
+
+	// caller holds the write stamp
+	private boolean insert(T value) {
+		if(root == null)
+			root = new Node (value);
+		else {
+			Node parent = null;
+			Node next = root;
+
+			while(next != null) {
+				int cmp = value.compareTo(next.value);
+				parent = next;
+				if(cmp == 0) {
+					return false;
+				} else if(cmp > 0) {
+					 next = next.rchild;
+				} else { // less than
+					next = next.lchild;
+				}
+			}
+
+			int cmp =  value.compareTo(parent.value);
+			if(cmp > 0)
+				parent.rchild = new Node(value);
+			else // less than
+				parent.lchild = new Node(value);
+		}
+
+		return true;
+	}
+
+	// caller holds the write stamp
+	private boolean delete(T value) {
+		Node parent = null;
+		Node next = root;
+
+		while(true) {
+			if(next == null)
+				return false;
+
+			int cmp = value.compareTo(next.value);
+			if(cmp == 0)
+				break; // Found!
+
+			parent = next;
+			if(cmp > 0) {
+				 next = next.rchild;
+			} else { // less than
+				next = next.lchild;
+			}
+		}
+
+		unlink(parent, next);
+		return true;
+	}
+
+	private boolean searchAll(Collection<? extends T> values) {
+		Finger finger = new Finger();
+		for(T value : values)
+			if(root == null || finger.find(value) != 0)
+				return false;
+		return true;
+	}
+
+	private boolean search(T value) {
+		Node next = root;
+		while(next != null) {
+			int cmp = value.compareTo(next.value);
+			if(cmp == 0)
+				return true;
+			else if(cmp > 0)
+				next = next.rchild;
+			else // less than
+				next = next.lchild;
+		}
+		return false;
+	}
+}
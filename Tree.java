@@ -1,6 +1,40 @@
+import java.util.Collection;
+import java.util.function.Consumer;
 
 public interface Tree<T extends Comparable<T>> {
 	boolean add(T value);
 	boolean remove(T value);
 	boolean contains(T value);
+	
+	// Feeds every key in [from, to) to consumer in ascending order.  How
+	// consistent the scan is with concurrent updates is up to the tree.
+	void rangeScan(T from, T to, Consumer<? super T> consumer);
+	
+	// Bulk operations.  These defaults just loop over the single-key
+	// operations.  The coarse-grained trees take their lock once for the
+	// whole batch, and LockbasedBST and StampedLockBST also start each
+	// search where the previous key's ended, which pays off most when
+	// the keys come in ascending order.
+	
+	// returns the number of keys that were not already in the tree
+	default int addAll(Collection<? extends T> values) {
+		int added = 0;
+		for(T value : values)
+			if(add(value)) added++;
+		return added;
+	}
+	
+	// returns the number of keys that were in the tree
+	default int removeAll(Collection<? extends T> values) {
+		int removed = 0;
+		for(T value : values)
+			if(remove(value)) removed++;
+		return removed;
+	}
+	
+	default boolean containsAll(Collection<? extends T> values) {
+		for(T value : values)
+			if(!contains(value)) return false;
+		return true;
+	}
 }
@@ -1,128 +1,439 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.*;
+import java.util.function.Supplier;
+
+import stanford.ShrinkWait;
+import stanford.SnapTreeMap;
 
 public class TreeTest {
 	static final int NUM_THREAD = 100;
-	static Thread[] thread = new Thread[NUM_THREAD];
 	
-	// Subjects under test
-	// declare as
-	// static Tree<Integer
-	// so that the test cases will work
-	static Tree<Integer> lockbasedBST = new LockbasedBST<Integer>();
-	static Tree<Integer> lockfreeBST = new LockFreeBST(false);
-	static Tree<Integer> lockavl = new LockAVLTree();
-	static Tree<Integer> lockavl_interfac = new LockAVLTreeInterface();
+	// Sweep mode: thread counts 1, 2, 4, ... up to twice the cores
+	static final int MAX_SWEEP_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+	
+	// Every measurement is one warmup run and RUNS timed runs.  A run is
+	// opsPerThread operations per worker, or runMillis ms if that is 0.
+	static final int RUNS = 5;
+	static int opsPerThread = 0;
+	static long runMillis = 1000;
+	
+	// where the keys of every operation come from, see main.  keyRange
+	// is the range given there, 0 for the whole int range.
+	static KeyDistribution keys = KeyDistribution.uniform();
+	static int keyRange = 0;
+	
+	// Every measurement gets a tree of its own, filled with prefill
+	// distinct keys drawn uniformly from the key range before its warmup,
+	// so that all trees and thread counts start from the same size.  At
+	// most half the key range.
+	static int prefill = 100000;
+	
+	// workers mix 50% add, 40% contains, 10% remove
+	static final int ADD = 0, CONTAINS = 1, REMOVE = 2;
+	static final String[] OP_NAME = {"add", "contains", "remove"};
 	
 	public static class TestCase {
 		String name;
-		Tree<Integer> SUT;
+		// makes a new, empty Tree<Integer> or IntTree for every measurement
+		Supplier<?> factory;
+		// the tree built last and SUT, which may be an adapter around it
+		Object tree;
+		IntTree SUT;
 		AtomicInteger numError;
-		public TestCase(String nameOfTree, Tree<Integer> SUT) {
+		// set for the lock-free BSTs, to report their failed CASes and helping
+		AbstractLockFreeBST lockFree;
+		// set for the optimistic AVL trees, to report how readers waited
+		// out rotations
+		ShrinkWait shrinkWait;
+		// set for the optimistic AVL trees, to report their routing nodes
+		AbstractLockAVLTree avl;
+		// per-operation latencies of all counted runs
+		LatencyHistogram[] latency;
+		public TestCase(String nameOfTree, Supplier<?> factory) {
 			this.name = nameOfTree;
-			this.SUT = SUT;
+			this.factory = factory;
 			this.numError = new AtomicInteger(0);
+			this.latency = new LatencyHistogram[OP_NAME.length];
+			for(int op = 0; op < latency.length; op++)
+				latency[op] = new LatencyHistogram();
 		}
 		
-		Thread.UncaughtExceptionHandler h = new Thread.UncaughtExceptionHandler() {
-		    public void uncaughtException(Thread th, Throwable ex) {
-		        numError.getAndIncrement();
-		    }
-		};
-		
-		int run() throws InterruptedException, NullPointerException {			
-			for(int i = 0; i < NUM_THREAD*5/10; i++) {
-				thread[i] = new Thread() {
-					ThreadLocalRandom rand = ThreadLocalRandom.current();
-					public void run() {
-						// TODO: write testing method
-						SUT.add(rand.nextInt());
-					}
+		// Makes a new tree and fills it, see prefill
+		@SuppressWarnings("unchecked")
+		void build() {
+			tree = factory.get();
+			if(tree instanceof IntTree) {
+				SUT = (IntTree) tree;
+			} else {
+				final Tree<Integer> t = (Tree<Integer>) tree;
+				SUT = new IntTree() {
+					public boolean add(int value) { return t.add(value); }
+					public boolean remove(int value) { return t.remove(value); }
+					public boolean contains(int value) { return t.contains(value); }
 				};
 			}
+			lockFree = tree instanceof AbstractLockFreeBST ? (AbstractLockFreeBST) tree : null;
+			avl = tree instanceof AbstractLockAVLTree ? (AbstractLockAVLTree) tree : null;
+			if(avl != null)
+				shrinkWait = avl.shrinkWait;
+			else if(tree instanceof LockAVLTreeInterface)
+				shrinkWait = SnapTreeMap.shrinkWait();
+			else
+				shrinkWait = null;
 			
-			for(int i = NUM_THREAD*5/10; i < NUM_THREAD*9/10 ;i++) {
-				thread[i] = new Thread() {
-					ThreadLocalRandom rand = ThreadLocalRandom.current();
-					public void run() {
-						// TODO: write testing method
-						SUT.contains(rand.nextInt());
-					}
-				};
+			// the keys are counted here and not by what add returns, a tree
+			// that gets that wrong must not keep the prefill going forever
+			ThreadLocalRandom rand = ThreadLocalRandom.current();
+			int size = keyRange > 0 ? Math.min(prefill, keyRange / 2) : prefill;
+			HashSet<Integer> added = new HashSet<Integer>();
+			while(added.size() < size) {
+				int key = keyRange > 0 ? rand.nextInt(keyRange) : rand.nextInt();
+				if(added.add(key))
+					SUT.add(key);
+			}
+		}
+		
+		// Stops the tree's background thread, if it has one, so that it
+		// does not keep working while the next case is measured, and lets
+		// go of the tree, the cases would keep every one alive otherwise
+		void shutdown() {
+			if(tree instanceof ContentionFriendlyBST)
+				((ContentionFriendlyBST<?>) tree).shutdown();
+			if(tree instanceof AbstractLockAVLTree)
+				((AbstractLockAVLTree) tree).shutdown();
+			tree = null;
+			SUT = null;
+			lockFree = null;
+			avl = null;
+			shrinkWait = null;
+		}
+		
+		void resetLatency() {
+			for(LatencyHistogram h : latency)
+				h.reset();
+		}
+		
+		// A fixed set of long-running worker threads.  Every run() releases
+		// them all at once through the start barrier, they then do mixed
+		// operations until they have done opsPerThread each or until stop
+		// is raised, and meet again at the done barrier.
+		class WorkerPool {
+			final Worker[] workers;
+			final CyclicBarrier start, done;
+			volatile boolean stop;
+			boolean shutdown;
+			// what stopped a worker, rethrown by run()
+			volatile Error failure;
+			int opsPerThread;
+			
+			WorkerPool(int numThreads) {
+				workers = new Worker[numThreads];
+				start = new CyclicBarrier(numThreads + 1);
+				done = new CyclicBarrier(numThreads + 1);
+				for(int i = 0; i < numThreads; i++) {
+					workers[i] = new Worker();
+					workers[i].setDaemon(true);
+					workers[i].start();
+				}
 			}
 			
-			for(int i = NUM_THREAD*9/10; i < NUM_THREAD; i++) {
-				thread[i] = new Thread() {
-					ThreadLocalRandom rand = ThreadLocalRandom.current();
-					public void run() {
-						// TODO: write testing method
-						SUT.remove(rand.nextInt());
+			// One run of opsPerThread operations per worker, or of millis
+			// milliseconds when opsPerThread is 0.  Returns the wall time in
+			// ns and merges the run's latencies into latency, or throws the
+			// Error that ended the run early.
+			long run(int opsPerThread, long millis) throws InterruptedException {
+				this.opsPerThread = opsPerThread;
+				this.stop = false;
+				try {
+					start.await();
+					long startTime = System.nanoTime();
+					if(opsPerThread == 0) {
+						Thread.sleep(millis);
+						stop = true;
 					}
-				};
+					done.await();
+					long elapsed = System.nanoTime() - startTime;
+					if(failure != null)
+						throw failure;
+					
+					for(Worker w : workers)
+						for(int op = 0; op < OP_NAME.length; op++) {
+							latency[op].add(w.hist[op]);
+							w.hist[op].reset();
+						}
+					return elapsed;
+				} catch(BrokenBarrierException e) {
+					throw new IllegalStateException(e);
+				}
 			}
 			
-			for (int i = 0; i < NUM_THREAD; i++) {
-				thread[i].setUncaughtExceptionHandler(h);
-				thread[i].start();
+			// operations done by all workers in the last run
+			long ops() {
+				long ops = 0;
+				for(Worker w : workers)
+					ops += w.ops;
+				return ops;
 			}
-
-			for (int i = 0; i < NUM_THREAD; i++) {
-				thread[i].join();
+			
+			void shutdown() throws InterruptedException {
+				shutdown = true;
+				try {
+					start.await();
+				} catch(BrokenBarrierException e) {
+					throw new IllegalStateException(e);
+				}
 			}
 			
-			return numError.get();
+			// Times its operations into a histogram of its own per operation,
+			// merged into latency by run() after the done barrier
+			class Worker extends Thread {
+				final LatencyHistogram[] hist = new LatencyHistogram[OP_NAME.length];
+				long ops;
+				Worker() {
+					for(int i = 0; i < hist.length; i++)
+						hist[i] = new LatencyHistogram();
+				}
+				
+				public void run() {
+					ThreadLocalRandom rand = ThreadLocalRandom.current();
+					try {
+						while(true) {
+							start.await();
+							if(shutdown)
+								return;
+							
+							long n = 0;
+							int limit = opsPerThread;
+							while(!stop && (limit == 0 || n < limit)) {
+								int r = rand.nextInt(10);
+								int op = (r < 5) ? ADD : (r < 9) ? CONTAINS : REMOVE;
+								int key = keys.nextKey(rand);
+								long startTime = System.nanoTime();
+								try {
+									switch(op) {
+									case ADD:      SUT.add(key); break;
+									case CONTAINS: SUT.contains(key); break;
+									default:       SUT.remove(key); break;
+									}
+								} catch(Exception | AssertionError e) {
+									numError.getAndIncrement();
+								} catch(Error e) {
+									// OutOfMemoryError and the like say nothing
+									// about the tree, stop everyone and let run()
+									// rethrow it.  The worker still reaches done,
+									// or main would wait forever.
+									failure = e;
+									stop = true;
+								}
+								hist[op].record(System.nanoTime() - startTime);
+								n++;
+							}
+							ops = n;
+							
+							done.await();
+						}
+					} catch(InterruptedException e) {
+					} catch(BrokenBarrierException e) {
+					}
+				}
+			}
 		}
 	}
 	
+	// RUNS timed runs of NUM_THREAD workers after one warmup run
 	public void test(TestCase tc) {
 		System.out.print("Testing " + tc.name + ":... ");
-        
-        
-        final int iterations = 100;
-        
-        // ignore first iteration
-		try{
-			tc.run();
-        }catch(Exception e){
-        }
 		
-		int sumTime = 0;
-		int sumError = 0;
-		for(int i = 0; i < iterations; i++) {
-			long startTime = System.currentTimeMillis();
-			int numError = 0;
-			try{
-				numError = tc.run();
-	        }catch(Exception e){
-	        	continue;
+		long ops = 0, nanos = 0, failures = 0, helped = 0;
+		long spins = 0, yields = 0, parks = 0, routing = 0, swept = 0;
+		// what there is to report, the tree is gone by then
+		boolean lockFree, waits, avl;
+		try {
+			tc.build();
+			lockFree = tc.lockFree != null;
+			waits = tc.shrinkWait != null;
+			avl = tc.avl != null;
+			TestCase.WorkerPool pool = tc.new WorkerPool(NUM_THREAD);
+			pool.run(opsPerThread, runMillis); // warmup
+			tc.resetLatency();
+			tc.numError.set(0);
+			if(tc.lockFree != null) {
+				failures = -tc.lockFree.backoff.failures();
+				helped = -tc.lockFree.helped();
 			}
-	        long stopTime = System.currentTimeMillis();
-	        
-	        if(numError == 0)
-	        	sumTime += (stopTime - startTime);
-	        else
-	        	sumError += 1;
+			if(tc.shrinkWait != null) {
+				spins = -tc.shrinkWait.spins();
+				yields = -tc.shrinkWait.yields();
+				parks = -tc.shrinkWait.parks();
+			}
+			for(int i = 0; i < RUNS; i++) {
+				nanos += pool.run(opsPerThread, runMillis);
+				ops += pool.ops();
+			}
+			pool.shutdown();
+			if(tc.lockFree != null) {
+				failures += tc.lockFree.backoff.failures();
+				helped += tc.lockFree.helped();
+			}
+			if(tc.shrinkWait != null) {
+				spins += tc.shrinkWait.spins();
+				yields += tc.shrinkWait.yields();
+				parks += tc.shrinkWait.parks();
+			}
+			if(tc.avl != null) {
+				routing = tc.avl.routingNodes();
+				swept = tc.avl.swept();
+			}
+		} catch(InterruptedException e) {
+			return;
+		} finally {
+			tc.shutdown();
 		}
 		
-		System.out.println("Out of " + iterations + " executions, there were " + sumError + " errors.");
-		
-		if(sumError == iterations) return;
-		int avgTime = sumTime / (iterations - sumError);
-        System.out.println(String.format("%3d", avgTime) + " ms");
+		System.out.println("Out of " + ops + " operations, there were " + tc.numError.get() + " errors.");
+		System.out.println(String.format("%,.0f ops/s", ops * 1e9 / nanos));
+		if(lockFree) {
+			System.out.println(String.format("%,d failed CASes, %.4f per operation", failures, (double) failures / ops));
+			System.out.println(String.format("%,d marked links cleaned while searching, %.4f per operation", helped, (double) helped / ops));
+		}
+		if(waits)
+			System.out.println(String.format("%,d spins, %,d yields, %,d parks waiting for rotations", spins, yields, parks));
+		if(avl)
+			System.out.println(String.format("%,d routing nodes left, %,d unlinked by sweeps", routing, swept));
+        
+        for(int op = 0; op < OP_NAME.length; op++) {
+        	LatencyHistogram h = tc.latency[op];
+        	System.out.println(String.format("  %-8s n=%-9d p50 %8.1f us  p99 %8.1f us  p99.9 %8.1f us  max %8.1f us",
+        			OP_NAME[op], h.count(), h.percentile(50) / 1e3, h.percentile(99) / 1e3,
+        			h.percentile(99.9) / 1e3, h.max() / 1e3));
+        }
 	}
 	
+	// Throughput of tc at every sweep thread count, printed as CSV rows
+	// tree,threads,ops,millis,ops_per_sec,speedup.  Each thread count
+	// starts from a new tree.
+	public void sweep(TestCase tc) {
+		double base = 0;
+		for(int t = 1; t <= MAX_SWEEP_THREADS; t *= 2) {
+			long ops = 0, nanos = 0;
+			try {
+				tc.build();
+				TestCase.WorkerPool pool = tc.new WorkerPool(t);
+				pool.run(opsPerThread, runMillis); // warmup
+				for(int i = 0; i < RUNS; i++) {
+					nanos += pool.run(opsPerThread, runMillis);
+					ops += pool.ops();
+				}
+				pool.shutdown();
+			} catch(InterruptedException e) {
+				return;
+			} finally {
+				tc.shutdown();
+			}
+			
+			double throughput = ops * 1e9 / nanos;
+			if(t == 1) base = throughput;
+			System.out.println(String.format("\"%s\",%d,%d,%d,%.0f,%.2f",
+					tc.name, t, ops, nanos / 1000000, throughput, throughput / base));
+		}
+	}
+	
+	// usage: TreeTest [--sweep] [--ops n | --millis n] [--prefill n]
+	//                 [--backoff spec,...] [--helping mode,...]
+	//                 [--layout compact|padded,...] [distribution [keyRange]]
+	// distribution is one of KeyDistribution.parse's specs, e.g. zipfian:0.99.
+	// Every combination of a Backoff.parse spec given to --backoff, a
+	// LockFreeBST.Helping mode given to --helping and a node layout gets a
+	// LockFreeBST case of its own, e.g. --backoff none,exponential
+	// --helping lazy,adaptive
 	public static void main(String[] args) {
-        System.out.println("Testing Different Tree Implementations");
-        System.out.println("Number of Threads: " + NUM_THREAD);
-
+        boolean sweep = false;
+        String backoffs = null, helpings = null, layouts = null;
+        int a = 0;
+        for(; a < args.length && args[a].startsWith("--"); a++) {
+        	if(args[a].equals("--sweep"))
+        		sweep = true;
+        	else if(args[a].equals("--ops"))
+        		opsPerThread = Integer.parseInt(args[++a]);
+        	else if(args[a].equals("--millis"))
+        		runMillis = Long.parseLong(args[++a]);
+        	else if(args[a].equals("--prefill"))
+        		prefill = Integer.parseInt(args[++a]);
+        	else if(args[a].equals("--backoff"))
+        		backoffs = args[++a];
+        	else if(args[a].equals("--helping"))
+        		helpings = args[++a];
+        	else if(args[a].equals("--layout"))
+        		layouts = args[++a];
+        	else
+        		throw new IllegalArgumentException("unknown option " + args[a]);
+        }
+        if(args.length > a) {
+        	keyRange = args.length > a + 1 ? Integer.parseInt(args[a + 1]) : 1000000;
+        	keys = KeyDistribution.parse(args[a], keyRange);
+        	if(keyRange < 0)
+        		keyRange = 0;
+        }
+        
+        // To add a new test case follow the template
+        // cases.add(new TestCase("name of the tree", () -> new MyTree<Integer>()));
+        // The factory may make a Tree<Integer> or an IntTree.
+        List<TestCase> cases = new ArrayList<TestCase>();
+        cases.add(new TestCase("Lock-based BST", () -> new LockbasedBST<Integer>()));
+        cases.add(new TestCase("Hand-over-hand BST", () -> new HandOverHandBST<Integer>()));
+        cases.add(new TestCase("Stamped-lock BST", () -> new StampedLockBST<Integer>()));
+        cases.add(new TestCase("Lock-based AVL", () -> new BalancedLockbasedBST<Integer>()));
+        cases.add(new TestCase("Contention-friendly BST", () -> new ContentionFriendlyBST<Integer>()));
+        if(backoffs == null && helpings == null && layouts == null)
+        	cases.add(new TestCase("Lock-free BST", () -> new LockFreeBST<Integer>(false)));
+        else
+        	for(String spec : (backoffs == null ? "none" : backoffs).split(","))
+        		for(String mode : (helpings == null ? "lazy" : helpings).split(","))
+        			for(String layout : (layouts == null ? "compact" : layouts).split(",")) {
+        				// every tree gets a Backoff of its own, it counts failures
+        				Backoff backoff = Backoff.parse(spec);
+        				LockFreeBST.Helping helping = LockFreeBST.Helping.valueOf(mode.toUpperCase());
+        				if(!layout.equals("compact") && !layout.equals("padded"))
+        					throw new IllegalArgumentException("unknown layout " + layout);
+        				boolean padded = layout.equals("padded");
+        				cases.add(new TestCase("Lock-free BST, " + backoff + " backoff, "
+        						+ mode.toLowerCase() + " helping, " + layout,
+        						() -> new LockFreeBST<Integer>(helping, Backoff.parse(spec), padded)));
+        			}
+        cases.add(new TestCase("Optimistic AVL", () -> new LockAVLTree<Integer>()));
+        cases.add(new TestCase("Optimistic AVL, relaxed balance",
+        		() -> new LockAVLTree<Integer>(LockAVLTree.Balance.RELAXED)));
+        cases.add(new TestCase("Efficient Lock-based AVL", () -> new LockAVLTreeInterface<Integer>()));
+        
+        // int-specialized trees, no boxing on the way in
+        cases.add(new TestCase("Lock-based BST (int)", () -> new IntLockbasedBST()));
+        cases.add(new TestCase("Lock-based AVL (int)", () -> new IntBalancedLockbasedBST()));
+        cases.add(new TestCase("Lock-free BST (int)", () -> new IntLockFreeBST(false)));
+        cases.add(new TestCase("Optimistic AVL (int)", () -> new IntLockAVLTree()));
 
         TreeTest MyTest = new TreeTest();
-
-        // To add a new test case follow the template
-        // MyTest.test(new TestCase("name of the tree", Tree t));
-        MyTest.test(new TestCase("Lock-based BST", lockbasedBST));
-        MyTest.test(new TestCase("Lock-free BST", lockfreeBST));
-        MyTest.test(new TestCase("Efficient Lock-based AVL", lockavl_interfac));
+        
+        if(sweep) {
+        	System.out.println("tree,threads,ops,millis,ops_per_sec,speedup");
+        	for(TestCase tc : cases)
+        		MyTest.sweep(tc);
+        	return;
+        }
+        
+        System.out.println("Testing Different Tree Implementations");
+        System.out.println("Number of Threads: " + NUM_THREAD);
+        System.out.println("Key distribution: " + keys);
+        System.out.println("Prefill: " + (keyRange > 0 ? Math.min(prefill, keyRange / 2) : prefill) + " keys");
+        System.out.println("Each of " + RUNS + " runs: "
+        		+ (opsPerThread > 0 ? opsPerThread + " operations per thread" : runMillis + " ms"));
+        
+        for(TestCase tc : cases)
+        	MyTest.test(tc);
         
 //        if(lockfreeBST.add(100)) System.out.println("Add succeeds");
 //        if(lockfreeBST.contains(100)) System.out.println("Contains succeeds");
@@ -0,0 +1,138 @@
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// JMH benchmark over every Tree implementation.
+//
+// Compile together with the tree sources and jmh-core /
+// jmh-generator-annprocess on the classpath, then either run
+// org.openjdk.jmh.Main (use -t for the thread count) or this class'
+// main, which repeats the whole suite for each count in THREADS.
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class TreeBenchmark {
+	static final int[] THREADS = {1, 2, 4, 8, 16};
+
+	@Param({"LockbasedBST", "HandOverHandBST", "StampedLockBST", "BalancedLockbasedBST",
+			"ContentionFriendlyBST", "LockFreeBST", "LockFreeBST-adaptive",
+			"LockFreeBST-padded", "LockAVLTree", "LockAVLTree-relaxed", "LockAVLTreeInterface",
+			"IntLockbasedBST", "IntBalancedLockbasedBST", "IntLockFreeBST", "IntLockAVLTree"})
+	String tree;
+
+	// percentage of contains/add/remove
+	@Param({"40/50/10", "90/5/5", "10/45/45"})
+	String mix;
+
+	@Param({"1000000"})
+	int keyRange;
+
+	// KeyDistribution.parse spec, over [0, keyRange)
+	@Param({"uniform", "zipfian:0.99", "hotspot:0.1:0.9", "sequential"})
+	String distribution;
+
+	@Param({"500000"})
+	int prefill;
+
+	IntTree SUT;
+	Object impl;
+	KeyDistribution keys;
+	int containsBound, addBound;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		impl = create(tree);
+		SUT = asIntTree(impl);
+		keys = KeyDistribution.parse(distribution, keyRange);
+
+		String[] pct = mix.split("/");
+		containsBound = Integer.parseInt(pct[0]);
+		addBound = containsBound + Integer.parseInt(pct[1]);
+		if(addBound + Integer.parseInt(pct[2]) != 100)
+			throw new IllegalArgumentException("mix must add up to 100: " + mix);
+		if(prefill > keyRange)
+			throw new IllegalArgumentException("prefill larger than keyRange");
+
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		for(int size = 0; size < prefill; ) {
+			if(SUT.add(rand.nextInt(keyRange)))
+				size++;
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		if(impl instanceof ContentionFriendlyBST)
+			((ContentionFriendlyBST<?>) impl).shutdown();
+		if(impl instanceof AbstractLockAVLTree)
+			((AbstractLockAVLTree) impl).shutdown();
+	}
+
+	@Benchmark
+	public boolean mixed() {
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		int op = rand.nextInt(100);
+		int key = keys.nextKey(rand);
+		if(op < containsBound)
+			return SUT.contains(key);
+		else if(op < addBound)
+			return SUT.add(key);
+		else
+			return SUT.remove(key);
+	}
+
+	static Object create(String name) {
+		switch(name) {
+		case "LockbasedBST":            return new LockbasedBST<Integer>();
+		case "HandOverHandBST":         return new HandOverHandBST<Integer>();
+		case "StampedLockBST":          return new StampedLockBST<Integer>();
+		case "BalancedLockbasedBST":    return new BalancedLockbasedBST<Integer>();
+		case "ContentionFriendlyBST":   return new ContentionFriendlyBST<Integer>();
+		case "LockFreeBST":             return new LockFreeBST<Integer>(false);
+		case "LockFreeBST-adaptive":    return new LockFreeBST<Integer>(LockFreeBST.Helping.ADAPTIVE);
+		case "LockFreeBST-padded":      return new LockFreeBST<Integer>(LockFreeBST.Helping.LAZY, Backoff.none(), true);
+		case "LockAVLTree":             return new LockAVLTree<Integer>();
+		case "LockAVLTree-relaxed":     return new LockAVLTree<Integer>(LockAVLTree.Balance.RELAXED);
+		case "LockAVLTreeInterface":    return new LockAVLTreeInterface<Integer>();
+		case "IntLockbasedBST":         return new IntLockbasedBST();
+		case "IntBalancedLockbasedBST": return new IntBalancedLockbasedBST();
+		case "IntLockFreeBST":          return new IntLockFreeBST(false);
+		case "IntLockAVLTree":          return new IntLockAVLTree();
+		default: throw new IllegalArgumentException("unknown tree " + name);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static IntTree asIntTree(Object impl) {
+		if(impl instanceof IntTree)
+			return (IntTree) impl;
+		final Tree<Integer> t = (Tree<Integer>) impl;
+		return new IntTree() {
+			public boolean add(int value) { return t.add(value); }
+			public boolean remove(int value) { return t.remove(value); }
+			public boolean contains(int value) { return t.contains(value); }
+		};
+	}
+
+	// JMH does not take the thread count as a @Param, so sweep it here
+	public static void main(String[] args) throws RunnerException {
+		for(int t : THREADS) {
+			Options opt = new OptionsBuilder()
+					.include(TreeBenchmark.class.getSimpleName())
+					.threads(t)
+					.result("tree-benchmark-" + t + "t.csv")
+					.resultFormat(ResultFormatType.CSV)
+					.build();
+			new Runner(opt).run();
+		}
+	}
+}
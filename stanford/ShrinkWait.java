@@ -0,0 +1,105 @@
+/*
+ * Not part of the Stanford SnapTree distribution the rest of this package
+ * comes from.  It was added for the rotation waits of SnapTreeMap and of
+ * the optimistic AVL trees outside this package, and may be used, copied,
+ * modified and distributed under the same conditions as the files around
+ * it.
+ */
+
+package stanford;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/** How an optimistic reader waits for a rotation to finish shrinking a
+ *  node.  It spins first, with a budget learned from how long the shrinks
+ *  it waited for took.  A spin that runs out usually means the thread
+ *  doing the rotation is not running, so the budget is halved, the reader
+ *  yields and then parks briefly until the version moves on, and the
+ *  thread holding the lock gets the CPU.
+ *  <p>
+ *  One instance is shared by all threads of a tree, but each thread learns
+ *  a budget of its own, so no shared line is written on every wait.  The
+ *  counters are there for the harness.
+ */
+public class ShrinkWait {
+    /** A node whose version changes once its shrink is over. */
+    public interface Versioned {
+        long version();
+    }
+
+    static final int MinSpins = 4;
+    static final int MaxSpins = 1 << 12;
+    static final long ParkNanos = 10000L; // 10 us
+
+    private final int yieldCount;
+    // this thread's spin budget
+    private final ThreadLocal<int[]> budget;
+
+    private final LongAdder spins = new LongAdder();
+    private final LongAdder yields = new LongAdder();
+    private final LongAdder parks = new LongAdder();
+
+    public ShrinkWait() {
+        this(100, 0);
+    }
+
+    /** <code>spins</code> is the budget to start from, <code>yields</code>
+     *  how often to yield before parking.
+     */
+    public ShrinkWait(int spins, int yields) {
+        final int initial = Math.min(MaxSpins, Math.max(MinSpins, spins));
+        this.budget = ThreadLocal.withInitial(() -> new int[] { initial });
+        this.yieldCount = yields;
+    }
+
+    /** <code>node</code> was seen at <code>ovl</code>, a version with the
+     *  shrinking bit set.  Returns once it is at another one.
+     */
+    public void await(Versioned node, long ovl) {
+        int[] budget = this.budget.get();
+        int limit = budget[0];
+        for (int i = 1; i <= limit; i++) {
+            Thread.onSpinWait();
+            if (node.version() != ovl) {
+                spins.add(i);
+                // aim for twice what this one took
+                budget[0] = Math.min(MaxSpins, Math.max(MinSpins, limit + ((2 * i - limit) >> 3)));
+                return;
+            }
+        }
+        spins.add(limit);
+        budget[0] = Math.max(MinSpins, limit >> 1);
+
+        for (int i = 0; i < yieldCount; i++) {
+            yields.increment();
+            Thread.yield();
+            if (node.version() != ovl) {
+                return;
+            }
+        }
+        do {
+            parks.increment();
+            LockSupport.parkNanos(ParkNanos);
+        } while (node.version() == ovl);
+    }
+
+    /** Spin iterations so far. */
+    public long spins() {
+        return spins.sum();
+    }
+
+    /** Yields so far. */
+    public long yields() {
+        return yields.sum();
+    }
+
+    /** Parks so far. */
+    public long parks() {
+        return parks.sum();
+    }
+
+    public String toString() {
+        return String.format("%,d spins, %,d yields, %,d parks", spins(), yields(), parks());
+    }
+}
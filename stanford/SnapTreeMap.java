@@ -111,12 +111,20 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     static final Object SpecialRetry = new Object();
 
 
-    /** The number of spins before yielding. */
+    /** The number of spins before yielding, to begin with. */
     static final int SpinCount = Integer.parseInt(System.getProperty("snaptree.spin", "100"));
 
-    /** The number of yields before blocking. */
+    /** The number of yields before parking. */
     static final int YieldCount = Integer.parseInt(System.getProperty("snaptree.yield", "0"));
 
+    /** How readers wait out a shrink, shared by all maps. */
+    static final ShrinkWait Wait = new ShrinkWait(SpinCount, YieldCount);
+
+    /** Returns the wait policy of all maps, for its counters. */
+    public static ShrinkWait shrinkWait() {
+        return Wait;
+    }
+
     
     // we encode directions as characters
     static final char Left = 'L';
@@ -143,7 +151,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
     static boolean isShrinkingOrUnlinked(long ovl) { return (ovl & 3) != 0L; }
 
 
-    private static class Node<K,V> implements Map.Entry<K,V> {
+    private static class Node<K,V> implements Map.Entry<K,V>, ShrinkWait.Versioned {
         final K key;
         volatile int height;
 
@@ -173,6 +181,9 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
             this.right = right;
         }
 
+        @Override
+        public long version() { return shrinkOVL; }
+
         @Override
         public K getKey() { return key; }
 
@@ -264,23 +275,7 @@ public class SnapTreeMap<K,V> extends AbstractMap<K,V> implements ConcurrentNavi
                 return;
             }
 
-            for (int tries = 0; tries < SpinCount; ++tries) {
-                if (shrinkOVL != ovl) {
-                    return;
-                }
-            }
-
-            for (int tries = 0; tries < YieldCount; ++tries) {
-                Thread.yield();
-                if (shrinkOVL != ovl) {
-                    return;
-                }
-            }
-
-            // spin and yield failed, use the nuclear option
-            synchronized (this) {
-                // we can't have gotten the lock unless the shrink was over
-            }
+            Wait.await(this, ovl);
             assert(shrinkOVL != ovl);
         }
 